@@ -3,97 +3,160 @@ package simplerag.data;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Base64;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Stream;
 
 
+/**
+ * 把markdown里内嵌的base64图片提取到{@link ImageStore}
+ */
 public class ImageExtractor {
 
     private final static Logger logger = LoggerFactory.getLogger(ImageExtractor.class.getName());
 
-    private static final Pattern IMG_PATTERN = Pattern.compile(
-            "!\\[(.*?)]\\(data:image/(?<type>[\\w+-]+);base64,(?<data>[a-zA-Z0-9+/=]+)\\)",
-            Pattern.CASE_INSENSITIVE
-    );
-
     public record ImageInfo(String type,
                             String id) {
     }
 
-    public static String saveBase64AsImage(String base64Data, String imageType)  {
-        // 解码 Base64
-        byte[] imageBytes = Base64.getDecoder().decode(base64Data);
+    private final ImageStore store;
 
-        String id = generateBase64Filename(imageBytes, 12);
-        System.out.println(id);
+    public ImageExtractor(ImageStore store) {
+        this.store = store;
+    }
+
+    /**
+     * SHA-256转换为Base64，替换URL不安全的字符，截取前length个字符
+     */
+    public static String idOf(byte[] hashBytes, int length) {
+        String base64 = Base64.getEncoder().withoutPadding().encodeToString(hashBytes);
+        base64 = base64.replace('+', '-').replace('/', '_');
+        return base64.substring(0, Math.min(length, base64.length()));
+    }
 
-        // 确保目录存在
-        Path path = Paths.get("img/" + id + "." + imageType);
-        try {
-            Files.createDirectories(path.getParent());
-            Files.write(path, imageBytes);
-        }catch (IOException e) {
-            logger.error("save image {} error: {}", path, e.getMessage());
-        }
 
-        return id;
+    public void extractAllImages(CharSequence content, List<ImageInfo> result) {
+        ImageScanner.scan(content, new Collector(result));
     }
 
 
-    public static String generateBase64Filename(byte[] imageBytes, int length) {
-        // 1. 计算MD5哈希（作为Base64输入）
-        byte[] hashBytes;
-        try {
-            hashBytes = MessageDigest.getInstance("SHA-256").digest(imageBytes);
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException("MD5算法不可用", e);
+    public List<ImageInfo> extractImages(Path path) throws IOException {
+        List<ImageInfo> result = new ArrayList<>();
+        Collector collector = new Collector(result);
+        try (BufferedReader reader = Files.newBufferedReader(path)) {
+            ImageScanner.scan(reader, collector);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            collector.abort();
         }
+        return result;
+    }
 
-        // 2. 转换为Base64并移除填充字符
-        String base64 = Base64.getEncoder().withoutPadding().encodeToString(hashBytes);
+    /**
+     * 并行提取目录下所有md文件里的图片
+     *
+     * @return 提取到的图片数，包括重复的
+     */
+    public int extractTree(Path dir, int threads) throws IOException {
+        List<Path> files;
+        try (Stream<Path> s = Files.walk(dir)) {
+            files = s.filter(p -> p.toString().endsWith(".md") && Files.isRegularFile(p)).toList();
+        }
 
-        // 3. 替换URL不安全的字符
-        base64 = base64.replace('+', '-').replace('/', '_');
+        long start = System.currentTimeMillis();
+        int images = 0;
+        List<Future<List<ImageInfo>>> futures = new ArrayList<>(files.size());
+        try (ExecutorService executor = Executors.newFixedThreadPool(threads)) {
+            for (Path file : files) {
+                futures.add(executor.submit(() -> extractImages(file)));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    images += futures.get(i).get().size();
+                } catch (ExecutionException e) {
+                    logger.error("extract images from {} error: {}", files.get(i), e.getCause().getMessage());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("extract interrupted", e);
+        }
 
-        // 4. 截取指定长度
-        return base64.substring(0, Math.min(length, base64.length()));
+        ImageStore.Stats stats = store.stats();
+        logger.info("extract {} images from {} files in {}ms, stored: {}, duplicates: {}, failed: {}, written: {}MB",
+                images, files.size(), System.currentTimeMillis() - start,
+                stats.stored(), stats.duplicates(), stats.failed(), stats.bytesWritten() >> 20);
+        return images;
     }
 
+    /**
+     * 把扫描到的base64数据边解码边交给ImageStore
+     */
+    private class Collector implements ImageScanner.Listener {
+        private final List<ImageInfo> result;
+        private ImageStore.ImageWriter writer;
 
-    public static void extractAllImages(String content, List<ImageInfo> result) {
-        Matcher matcher = IMG_PATTERN.matcher(content);
+        Collector(List<ImageInfo> result) {
+            this.result = result;
+        }
 
-        while (matcher.find()) {
-            String type = matcher.group("type");
-            String base64 = matcher.group("data");
-            String md5 = saveBase64AsImage(base64, type);
-            result.add(new ImageInfo(type, md5));
+        @Override
+        public void text(CharSequence s, int start, int end) {
         }
-    }
 
+        @Override
+        public void imageStart(String type, boolean base64) {
+            writer = base64 ? store.newImage(type) : null;
+        }
 
-    public static void extractImages(Path path) throws IOException {
-        List<ImageInfo> result = new ArrayList<>();
-        try (Stream<String> lines = Files.lines(path)) {
-            lines.forEach(line -> {
-                extractAllImages(line, result);
-            });
+        @Override
+        public void imageData(CharSequence s, int start, int end) {
+            if (writer != null) {
+                try {
+                    writer.append(s, start, end);
+                } catch (IOException e) {
+                    writer.abort();
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+
+        @Override
+        public void imageEnd(boolean closed) {
+            if (writer != null) {
+                if (closed) {
+                    ImageInfo info = writer.finish();
+                    if (info != null) {
+                        result.add(info);
+                    }
+                } else {
+                    writer.abort();
+                }
+                writer = null;
+            }
         }
 
+        void abort() {
+            if (writer != null) {
+                writer.abort();
+                writer = null;
+            }
+        }
     }
 
     public static void main(String[] args) throws IOException {
-        extractImages(Path.of("data/87854843_Houdini仿Gfur生成毛发模型工具.md"));
-
+        ImageExtractor extractor = new ImageExtractor(new ImageStore(Path.of("img")));
+        extractor.extractTree(Path.of(args.length > 0 ? args[0] : "data"), Runtime.getRuntime().availableProcessors());
     }
 }
@@ -0,0 +1,365 @@
+package simplerag.data;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
+
+/**
+ * 单遍扫描markdown里的内嵌图片 ![...](data:image/...)，不用正则，没有回溯，时间和长度线性相关。
+ * <p>
+ * 规则：同一行里从最左边的 ![ 开始，到它后面第一个 ](data:image/ （不区分大小写），
+ * 再到第一个 ) 结束，中间的base64可以有几MB。
+ * 看到 ](data:image/ 就认定是图片。base64数据可以按行折开，没有 ) 的话，到第一个不是base64的字符为止，
+ * 这个字符所在的行不是数据时到换行为止；其他数据到换行为止。
+ * 后面的还是文本，不会因为一个没写完的图片把文档剩下的部分都吞掉。
+ * <p>
+ * 文本可以一次给完，也可以分块{@link #feed}进来，最后调用{@link #finish}，
+ * 非图片的文本和图片数据按原来的顺序回调给{@link Listener}。
+ */
+public final class ImageScanner {
+
+    public interface Listener {
+
+        /**
+         * 非图片的文本，s[start, end)，s只在回调期间有效
+         */
+        void text(CharSequence s, int start, int end);
+
+        /**
+         * @param type   data:image/后面、;或,之前的部分，比如png、svg+xml
+         * @param base64 是否是;base64,编码，只有base64的图片会回调{@link #imageData}
+         */
+        default void imageStart(String type, boolean base64) {
+        }
+
+        /**
+         * base64数据的一段，可能被调用多次
+         */
+        default void imageData(CharSequence s, int start, int end) {
+        }
+
+        /**
+         * @param closed 是否以)结束，false表示没有)就结束了
+         */
+        default void imageEnd(boolean closed) {
+        }
+    }
+
+    private static final String PREFIX = "](data:image/";
+    // data:image/和,之间最多这么长，超过了就不再当作base64
+    private static final int MAX_HEADER = 64;
+    // base64换行后的一行最多缓存这么长，超过了就当作数据
+    private static final int MAX_LINE = 1024;
+
+    private enum State {
+        TEXT, BANG, ALT, PREFIX, HEADER, DATA, LINE
+    }
+
+    private final Listener listener;
+    private State state = State.TEXT;
+    // ![开始还不能确定是不是图片的部分，不是图片时作为文本输出；
+    // LINE状态下是base64换行之后还不能确定是数据还是文本的一行
+    private final StringBuilder pending = new StringBuilder();
+    private int prefixMatched;
+    private final StringBuilder header = new StringBuilder();
+    private boolean base64;
+
+    public ImageScanner(Listener listener) {
+        this.listener = listener;
+    }
+
+    public void feed(CharSequence s) {
+        feed(s, 0, s.length());
+    }
+
+    public void feed(CharSequence s, int start, int end) {
+        int textStart = -1;
+        int dataStart = state == State.DATA ? start : -1;
+        int i = start;
+        while (i < end) {
+            char c = s.charAt(i);
+            switch (state) {
+                case TEXT -> {
+                    if (c == '!') {
+                        emitText(s, textStart, i);
+                        textStart = -1;
+                        pending.setLength(0);
+                        pending.append(c);
+                        state = State.BANG;
+                    } else if (textStart < 0) {
+                        textStart = i;
+                    }
+                }
+                case BANG -> {
+                    if (c == '[') {
+                        pending.append(c);
+                        state = State.ALT;
+                    } else {
+                        flushPending();
+                        state = State.TEXT;
+                        continue; // 这个字符按文本重新处理
+                    }
+                }
+                case ALT -> {
+                    if (c == '\n') {
+                        flushPending();
+                        state = State.TEXT;
+                        textStart = i;
+                    } else {
+                        pending.append(c);
+                        if (c == ']') {
+                            prefixMatched = 1;
+                            state = State.PREFIX;
+                        }
+                    }
+                }
+                case PREFIX -> {
+                    if (Character.toLowerCase(c) == PREFIX.charAt(prefixMatched)) {
+                        pending.append(c);
+                        prefixMatched++;
+                        if (prefixMatched == PREFIX.length()) {
+                            pending.setLength(0);
+                            header.setLength(0);
+                            state = State.HEADER;
+                        }
+                    } else {
+                        // PREFIX里只有开头是]，不匹配的字符回到ALT重新处理就行
+                        state = State.ALT;
+                        continue;
+                    }
+                }
+                case HEADER -> {
+                    if (c == ',') {
+                        startImage();
+                        state = State.DATA;
+                        dataStart = i + 1;
+                    } else if (c == ')') {
+                        startImage();
+                        listener.imageEnd(true);
+                        state = State.TEXT;
+                    } else if (c == '\n') {
+                        startImage();
+                        listener.imageEnd(false);
+                        state = State.TEXT;
+                        continue; // 换行按文本重新处理
+                    } else if (header.length() >= MAX_HEADER) {
+                        startImage();
+                        base64 = false;
+                        state = State.DATA;
+                        continue;
+                    } else {
+                        header.append(c);
+                    }
+                }
+                case DATA -> {
+                    if (c == ')') {
+                        emitData(s, dataStart, i);
+                        dataStart = -1;
+                        listener.imageEnd(true);
+                        state = State.TEXT;
+                    } else if (base64 && (c == '\n' || c == '\r')) {
+                        emitData(s, dataStart, i);
+                        dataStart = -1;
+                        pending.setLength(0);
+                        pending.append(c);
+                        state = State.LINE;
+                    } else if (base64 ? !isBase64(c) : c == '\n') {
+                        // 没有)，图片到这里为止，这个字符按文本重新处理
+                        emitData(s, dataStart, i);
+                        dataStart = -1;
+                        listener.imageEnd(false);
+                        state = State.TEXT;
+                        continue;
+                    }
+                }
+                case LINE -> {
+                    if (c == ')') {
+                        listener.imageData(pending, 0, pending.length());
+                        pending.setLength(0);
+                        listener.imageEnd(true);
+                        state = State.TEXT;
+                    } else if (c == '\n' || c == '\r') {
+                        listener.imageData(pending, 0, pending.length());
+                        pending.setLength(0);
+                        pending.append(c);
+                    } else if (!isBase64(c)) {
+                        // 这一行不是数据，图片在换行处结束，缓存的行和这个字符都是文本
+                        listener.imageEnd(false);
+                        flushPending();
+                        state = State.TEXT;
+                        continue;
+                    } else if (pending.length() >= MAX_LINE) {
+                        listener.imageData(pending, 0, pending.length());
+                        pending.setLength(0);
+                        state = State.DATA;
+                        dataStart = i;
+                        continue;
+                    } else {
+                        pending.append(c);
+                    }
+                }
+            }
+            i++;
+        }
+
+        if (state == State.TEXT) {
+            emitText(s, textStart, end);
+        } else if (state == State.DATA) {
+            emitData(s, dataStart, end);
+        }
+    }
+
+    public void finish() {
+        switch (state) {
+            case BANG, ALT, PREFIX -> flushPending();
+            case HEADER -> {
+                startImage();
+                listener.imageEnd(false);
+            }
+            case DATA -> listener.imageEnd(false);
+            case LINE -> {
+                listener.imageEnd(false);
+                flushPending();
+            }
+            default -> {
+            }
+        }
+        state = State.TEXT;
+    }
+
+    private void emitText(CharSequence s, int start, int end) {
+        if (start >= 0 && start < end) {
+            listener.text(s, start, end);
+        }
+    }
+
+    private void emitData(CharSequence s, int start, int end) {
+        if (base64 && start >= 0 && start < end) {
+            listener.imageData(s, start, end);
+        }
+    }
+
+    private void flushPending() {
+        if (!pending.isEmpty()) {
+            listener.text(pending, 0, pending.length());
+            pending.setLength(0);
+        }
+    }
+
+    private static boolean isBase64(char c) {
+        return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')
+                || c == '+' || c == '/' || c == '=' || c == '-' || c == '_';
+    }
+
+    private void startImage() {
+        int semi = header.indexOf(";");
+        String type = semi >= 0 ? header.substring(0, semi) : header.toString();
+        String h = header.toString().toLowerCase();
+        base64 = h.endsWith(";base64");
+        listener.imageStart(type, base64);
+    }
+
+
+    /**
+     * 去掉所有内嵌图片，没有图片时不复制
+     */
+    public static String strip(CharSequence text) {
+        if (!containsDataImage(text)) {
+            return text.toString();
+        }
+        StringBuilder sb = new StringBuilder(text.length());
+        scan(text, (s, start, end) -> sb.append(s, start, end));
+        return sb.toString();
+    }
+
+    public static void scan(CharSequence text, Listener listener) {
+        ImageScanner scanner = new ImageScanner(listener);
+        scanner.feed(text);
+        scanner.finish();
+    }
+
+    public static void scan(Reader reader, Listener listener) throws IOException {
+        ImageScanner scanner = new ImageScanner(listener);
+        char[] buf = new char[64 * 1024];
+        CharBuffer wrapped = CharBuffer.wrap(buf);
+        int n;
+        while ((n = reader.read(buf)) >= 0) {
+            scanner.feed(wrapped, 0, n);
+        }
+        scanner.finish();
+    }
+
+    /**
+     * 边读边去掉内嵌图片的Reader，图片数据不会整个进内存
+     */
+    public static Reader stripping(Reader reader) {
+        return new StrippingReader(reader);
+    }
+
+    private static final class StrippingReader extends Reader {
+        private final Reader in;
+        private final char[] buf = new char[64 * 1024];
+        private final CharBuffer wrapped = CharBuffer.wrap(buf);
+        // 扫描出来还没被读走的文本
+        private final StringBuilder out = new StringBuilder();
+        private final ImageScanner scanner = new ImageScanner((s, start, end) -> out.append(s, start, end));
+        private int outPos;
+        private boolean eof;
+
+        StrippingReader(Reader in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            // 一块全是图片数据时没有输出，接着读
+            while (outPos == out.length()) {
+                if (eof) {
+                    return -1;
+                }
+                out.setLength(0);
+                outPos = 0;
+                int n = in.read(buf);
+                if (n < 0) {
+                    eof = true;
+                    scanner.finish();
+                } else {
+                    scanner.feed(wrapped, 0, n);
+                }
+            }
+            int n = Math.min(len, out.length() - outPos);
+            out.getChars(outPos, outPos + n, cbuf, off);
+            outPos += n;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private static boolean containsDataImage(CharSequence text) {
+        String key = PREFIX.substring(2);
+        int n = text.length() - key.length();
+        for (int i = 0; i <= n; i++) {
+            char c = text.charAt(i);
+            if ((c == 'd' || c == 'D') && regionMatches(text, i, key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean regionMatches(CharSequence text, int offset, String key) {
+        for (int k = 0; k < key.length(); k++) {
+            if (Character.toLowerCase(text.charAt(offset + k)) != key.charAt(k)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,225 @@
+package simplerag.data;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * 按内容寻址的图片存储：文件名是内容的SHA-256，存在 root/id前两位/id.type，同样的图片只存一份。
+ * <p>
+ * base64边读边解码、边算hash，小图片在内存里，大图片先写到root下的临时文件，算完hash再原子rename到目标位置。
+ * 已有的图片记在内存索引里（启动时扫描root），重复的图片不写盘。线程安全。
+ */
+public class ImageStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(ImageStore.class.getName());
+
+    private static final int ID_LENGTH = 12;
+    private static final Pattern TYPE_PATTERN = Pattern.compile("[\\w+-]{1,16}");
+    private static final String TMP_SUFFIX = ".tmp";
+    // 解码后超过这个大小就写临时文件
+    private static final int MEMORY_LIMIT = 1024 * 1024;
+
+    public record Stats(long stored,
+                        long duplicates,
+                        long failed,
+                        long bytesWritten) {
+    }
+
+    private final Path root;
+    // id.type
+    private final Set<String> index = ConcurrentHashMap.newKeySet();
+    private final LongAdder stored = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+
+    public ImageStore(Path root) throws IOException {
+        this.root = root;
+        Files.createDirectories(root);
+        try (Stream<Path> files = Files.walk(root, 2)) {
+            files.filter(p -> Files.isRegularFile(p) && !root.equals(p.getParent()))
+                    .map(p -> p.getFileName().toString())
+                    .filter(name -> !name.endsWith(TMP_SUFFIX))
+                    .forEach(index::add);
+        }
+        logger.info("image store {} has {} images", root, index.size());
+    }
+
+    public Path pathOf(String id, String type) {
+        return root.resolve(id.substring(0, 2)).resolve(id + "." + type);
+    }
+
+    public boolean contains(String id, String type) {
+        return index.contains(id + "." + type);
+    }
+
+    public Stats stats() {
+        return new Stats(stored.sum(), duplicates.sum(), failed.sum(), bytesWritten.sum());
+    }
+
+    /**
+     * @return type不合法时返回null
+     */
+    public ImageWriter newImage(String type) {
+        if (type == null || !TYPE_PATTERN.matcher(type).matches()) {
+            return null;
+        }
+        return new ImageWriter(type.toLowerCase());
+    }
+
+    /**
+     * 一张图片的base64数据分多次{@link #append}进来，最后{@link #finish}或者{@link #abort}
+     */
+    public class ImageWriter {
+        private static final int CHUNK = 64 * 1024; // 4的倍数
+
+        private final String type;
+        private final MessageDigest digest = sha256();
+        private final byte[] chars = new byte[CHUNK];
+        private int len;
+        private boolean padded;
+        private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+        private Path tmp;
+        private OutputStream out;
+        private long size;
+
+        private ImageWriter(String type) {
+            this.type = type;
+        }
+
+        /**
+         * 跳过换行等非base64字符，=之后的都忽略
+         */
+        public void append(CharSequence s, int start, int end) throws IOException {
+            for (int i = start; i < end && !padded; i++) {
+                char c = s.charAt(i);
+                if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '+' || c == '/') {
+                    chars[len++] = (byte) c;
+                    if (len == CHUNK) {
+                        decode();
+                    }
+                } else if (c == '=') {
+                    padded = true;
+                }
+            }
+        }
+
+        /**
+         * 中途调用时len是CHUNK，一定是完整的4字符组；最后一次可以不带=
+         */
+        private void decode() throws IOException {
+            ByteBuffer decoded = Base64.getDecoder().decode(ByteBuffer.wrap(chars, 0, len));
+            len = 0;
+
+            byte[] bytes = decoded.array();
+            int from = decoded.arrayOffset() + decoded.position();
+            int count = decoded.remaining();
+            digest.update(bytes, from, count);
+            size += count;
+            if (out == null && memory.size() + count > MEMORY_LIMIT) {
+                tmp = Files.createTempFile(root, "img", TMP_SUFFIX);
+                out = new BufferedOutputStream(Files.newOutputStream(tmp));
+                memory.writeTo(out);
+                memory = null;
+            }
+            if (out != null) {
+                out.write(bytes, from, count);
+            } else {
+                memory.write(bytes, from, count);
+            }
+        }
+
+        /**
+         * @return 数据不合法或者写失败时返回null
+         */
+        public ImageExtractor.ImageInfo finish() {
+            try {
+                decode();
+            } catch (IllegalArgumentException | IOException e) {
+                logger.warn("decode {} image failed: {}", type, e.getMessage());
+                failed.increment();
+                abort();
+                return null;
+            }
+            if (size == 0) {
+                abort();
+                return null;
+            }
+
+            String id = ImageExtractor.idOf(digest.digest(), ID_LENGTH);
+            ImageExtractor.ImageInfo info = new ImageExtractor.ImageInfo(type, id);
+            String key = id + "." + type;
+            if (!index.add(key)) {
+                duplicates.increment();
+                abort();
+                return info;
+            }
+
+            Path path = pathOf(id, type);
+            try {
+                Files.createDirectories(path.getParent());
+                if (out == null) {
+                    tmp = Files.createTempFile(root, "img", TMP_SUFFIX);
+                    try (OutputStream o = Files.newOutputStream(tmp)) {
+                        memory.writeTo(o);
+                    }
+                } else {
+                    out.close();
+                    out = null;
+                }
+                Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE);
+                tmp = null;
+                stored.increment();
+                bytesWritten.add(size);
+                return info;
+            } catch (IOException e) {
+                index.remove(key);
+                failed.increment();
+                logger.error("save image {} error: {}", path, e.getMessage());
+                abort();
+                return null;
+            }
+        }
+
+        public void abort() {
+            memory = null;
+            try {
+                if (out != null) {
+                    out.close();
+                    out = null;
+                }
+                if (tmp != null) {
+                    Files.deleteIfExists(tmp);
+                    tmp = null;
+                }
+            } catch (IOException e) {
+                logger.warn("delete {} failed", tmp, e);
+            }
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256算法不可用", e);
+        }
+    }
+}
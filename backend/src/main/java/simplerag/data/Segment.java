@@ -1,29 +1,23 @@
 package simplerag.data;
 
-import org.commonmark.node.Document;
-import org.commonmark.node.Node;
-import org.commonmark.renderer.Renderer;
-import org.commonmark.renderer.markdown.MarkdownRenderer;
 import simplerag.utils.TokenCounter;
 
 import java.util.ArrayList;
 import java.util.List;
 
 public class Segment {
-    private static final Renderer renderer = MarkdownRenderer.builder().build();
-
     private final String header;
     private final int level;
-    private List<Node> bodyNodes;
     private String body;
 
     private int headerTokenNum;
     private int bodyTokenNum;
+    // body里每个token的结束位置，只有大段落才保留，切分时用
+    private int[] bodyTokenEnds;
 
     Segment(String header, int level) {
         this.header = header;
         this.level = level;
-        bodyNodes = new ArrayList<>();
     }
 
     Segment(Segment original, String body, int bodyTokenNum) {
@@ -34,16 +28,8 @@ public class Segment {
         this.bodyTokenNum = bodyTokenNum;
     }
 
-    void addBodyPart(Node node) {
-        bodyNodes.add(node);
-    }
-
-    void endBodyPart() {
-        Document tempDoc = new Document();
-        for (Node n : bodyNodes) {
-            tempDoc.appendChild(n);
-        }
-        body = renderer.render(tempDoc);
+    void setBody(String body) {
+        this.body = body;
     }
 
     public void estimateTokenNum(TokenCounter tokenCounter) {
@@ -71,6 +57,10 @@ public class Segment {
         return bodyTokenNum;
     }
 
+    int[] getBodyTokenEnds() {
+        return bodyTokenEnds;
+    }
+
     public int getTokenNum() {
         return headerTokenNum + bodyTokenNum;
     }
@@ -83,8 +73,25 @@ public class Segment {
     }
 
     public static void estimateTokenNum(List<Segment> segments, TokenCounter counter) {
+        estimateTokenNum(segments, counter, Integer.MAX_VALUE);
+    }
+
+    /**
+     * 所有header和body一次批量计算，body的token数超过keepEndsOver时保留token位置
+     */
+    public static void estimateTokenNum(List<Segment> segments, TokenCounter counter, int keepEndsOver) {
+        List<String> texts = new ArrayList<>(segments.size() * 2);
+        for (Segment segment : segments) {
+            texts.add(segment.header);
+            texts.add(segment.body);
+        }
+        TokenCounter.Tokens[] tokens = counter.tokenize(texts, keepEndsOver);
+        int i = 0;
         for (Segment segment : segments) {
-            segment.estimateTokenNum(counter);
+            segment.headerTokenNum = tokens[i++].count();
+            TokenCounter.Tokens body = tokens[i++];
+            segment.bodyTokenNum = body.count();
+            segment.bodyTokenEnds = body.ends();
         }
     }
 
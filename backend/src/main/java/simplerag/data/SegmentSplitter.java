@@ -1,55 +1,229 @@
 package simplerag.data;
 
 import org.commonmark.node.*;
+import org.commonmark.parser.IncludeSourceSpans;
 import org.commonmark.parser.Parser;
+import org.commonmark.renderer.Renderer;
+import org.commonmark.renderer.markdown.MarkdownRenderer;
 import org.commonmark.renderer.text.TextContentRenderer;
 
+import java.io.BufferedReader;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
+import java.util.function.Consumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class SegmentSplitter {
 
     private final TextContentRenderer textRenderer = TextContentRenderer.builder().build();
-    private final Parser parser = Parser.builder().build();
+    private final Renderer renderer = MarkdownRenderer.builder().build();
+    private final Parser parser = Parser.builder().includeSourceSpans(IncludeSourceSpans.BLOCKS_AND_INLINES).build();
 
     public List<Segment> removeLinkAndSplitByHeadings(String markdownText, String title) {
-        String markdown = removeImageForMarkItDownBug(markdownText);
+        return removeLinkAndSplit(removeImageForMarkItDownBug(markdownText), title);
+    }
+
+    /**
+     * body直接按source span从原文截取，不再把节点重新render成markdown；链接和图片按span从截取的文本里去掉。
+     * 每个顶层block之间空一行，和MarkdownRenderer的输出一致，block内部保留原文。
+     * 返回后AST不再被引用。
+     */
+    private List<Segment> removeLinkAndSplit(String markdown, String title) {
         Node document = parser.parse(markdown);
-        removeLink(document);
         List<Segment> segments = new ArrayList<>();
 
         Segment curSegment = new Segment(title, 0);
         segments.add(curSegment);
+        List<String> parts = new ArrayList<>();
 
         Node node = document.getFirstChild();
         while (node != null) {
 
             if (node instanceof Heading heading) {
+                curSegment.setBody(joinBody(parts));
+                parts.clear();
+
+                removeLink(heading);
                 String headingText = textRenderer.render(heading).trim();
                 curSegment = new Segment(headingText, heading.getLevel());
                 segments.add(curSegment);
 
             } else {
-                curSegment.addBodyPart(node);
+                String part = sliceWithoutLink(markdown, node);
+                if (!part.isBlank()) {
+                    parts.add(part);
+                }
             }
             node = node.getNext();
         }
+        curSegment.setBody(joinBody(parts));
 
-        for (Segment segment : segments) {
-            segment.endBodyPart();
+        return segments;
+    }
+
+    private static String joinBody(List<String> parts) {
+        // MarkdownRenderer对空内容也输出一个换行
+        return String.join("\n\n", parts) + "\n";
+    }
+
+    private String sliceWithoutLink(String markdown, Node block) {
+        if (block instanceof LinkReferenceDefinition) {
+            return "";
+        }
+        List<SourceSpan> spans = block.getSourceSpans();
+        if (spans.isEmpty()) {
+            // 没有位置信息时退回到render
+            removeLink(block);
+            return renderer.render(block).stripTrailing();
         }
+        int start = spans.getFirst().getInputIndex();
+        SourceSpan last = spans.getLast();
+        int end = last.getInputIndex() + last.getLength();
+
+        List<int[]> removes = new ArrayList<>();
+        collectLinkRanges(block, removes);
+        if (removes.isEmpty()) {
+            return markdown.substring(start, end);
+        }
+        removes.sort(Comparator.comparingInt(range -> range[0]));
+        StringBuilder sb = new StringBuilder(end - start);
+        int pos = start;
+        for (int[] range : removes) {
+            if (range[0] > pos) {
+                sb.append(markdown, pos, Math.min(range[0], end));
+            }
+            pos = Math.max(pos, range[1]);
+        }
+        if (pos < end) {
+            sb.append(markdown, pos, end);
+        }
+        return sb.toString();
+    }
 
-        return segments;
+    private static void collectLinkRanges(Node node, List<int[]> removes) {
+        if (node instanceof Link || node instanceof LinkReferenceDefinition || node instanceof Image) {
+            for (SourceSpan span : node.getSourceSpans()) {
+                removes.add(new int[]{span.getInputIndex(), span.getInputIndex() + span.getLength()});
+            }
+            return;
+        }
+        for (Node c = node.getFirstChild(); c != null; c = c.getNext()) {
+            collectLinkRanges(c, removes);
+        }
+    }
+
+
+    private static final Pattern ATX_HEADING = Pattern.compile(" {0,3}#{1,6}([ \t].*)?");
+    private static final Pattern FENCE_OPEN = Pattern.compile(" {0,3}(`{3,}|~{3,})(.*)");
+    private static final Pattern FENCE_CLOSE = Pattern.compile(" {0,3}(`{3,}|~{3,})[ \t]*");
+
+    /**
+     * 流式切分：逐行读，在代码块外的ATX标题（# xxx）处分成section，每个section单独parse后交给consumer，
+     * 内存只和最大的section有关，section内的setext标题照常识别。
+     * 和整篇parse相比，跨section的链接引用定义、列表项里的标题等少见写法结果可能不同。
+     * 图片在readLine之前就去掉了，几百MB的base64行不会整行读进内存。
+     */
+    public void splitByHeadings(BufferedReader reader, String title, Consumer<List<Segment>> consumer) throws IOException {
+        BufferedReader lines = new BufferedReader(ImageScanner.stripping(reader));
+        StringBuilder section = new StringBuilder();
+        boolean first = true;
+        String fence = null; // 在代码块里时是代码块的开始标记
+        String line;
+        while ((line = lines.readLine()) != null) {
+            if (fence == null) {
+                Matcher m = FENCE_OPEN.matcher(line);
+                if (m.matches() && !(m.group(1).charAt(0) == '`' && m.group(2).contains("`"))) {
+                    fence = m.group(1);
+                } else if (!section.isEmpty() && ATX_HEADING.matcher(line).matches()) {
+                    emitSection(section.toString(), title, first, consumer);
+                    first = false;
+                    section.setLength(0);
+                }
+            } else {
+                Matcher m = FENCE_CLOSE.matcher(line);
+                if (m.matches() && m.group(1).charAt(0) == fence.charAt(0) && m.group(1).length() >= fence.length()) {
+                    fence = null;
+                }
+            }
+            section.append(line).append('\n');
+        }
+        if (first || !section.isEmpty()) {
+            emitSection(section.toString(), title, first, consumer);
+        }
     }
 
+    private void emitSection(String text, String title, boolean first, Consumer<List<Segment>> consumer) {
+        List<Segment> segments = removeLinkAndSplit(text, title);
+        // 后面的section以标题开头，parse出来的第一个无标题segment是空的
+        if (!first && segments.getFirst().getBody().isBlank()) {
+            segments = segments.subList(1, segments.size());
+        }
+        consumer.accept(segments);
+    }
 
-    public static final Pattern IMG_PATTERN = Pattern.compile("!\\[.*]\\(data:image/[^)]+\\)");
+    // 可能让后面的section依赖前面内容的写法：html块（里面的#行不是标题）、链接引用定义
+    private static final Pattern HTML_BLOCK = Pattern.compile(" {0,3}<.*");
+    private static final String LINK_DEFINITION = "]:";
+
+    /**
+     * 在代码块外、顶格的ATX标题处把已经去掉图片的markdown切成section，每个section至少minLength个字符（最后一个除外），
+     * 每个section用{@link #removeLinkAndSplitSection}单独parse，拼起来和整篇{@link #removeLinkAndSplitByHeadings}完全一样。
+     * <p>
+     * 顶格的#行一定会结束列表、引用这些容器，所以只要不在顶层的代码块或者html块里就是顶层标题。
+     * 有html块、链接引用定义、缩进的代码块开始标记时判断不准，返回整篇一个section。
+     */
+    public static List<String> splitSections(String markdown, int minLength) {
+        List<String> sections = new ArrayList<>();
+        int sectionStart = 0;
+        String fence = null;
+        int lineStart = 0;
+        int n = markdown.length();
+        while (lineStart < n) {
+            int lineEnd = markdown.indexOf('\n', lineStart);
+            if (lineEnd < 0) {
+                lineEnd = n;
+            }
+            int contentEnd = lineEnd > lineStart && markdown.charAt(lineEnd - 1) == '\r' ? lineEnd - 1 : lineEnd;
+            String line = markdown.substring(lineStart, contentEnd);
+            if (fence == null) {
+                Matcher m = FENCE_OPEN.matcher(line);
+                if (m.matches() && !(m.group(1).charAt(0) == '`' && m.group(2).contains("`"))) {
+                    if (line.charAt(0) == ' ') {
+                        return List.of(markdown);
+                    }
+                    fence = m.group(1);
+                } else if (line.contains(LINK_DEFINITION) || HTML_BLOCK.matcher(line).matches()) {
+                    return List.of(markdown);
+                } else if (line.startsWith("#") && lineStart - sectionStart >= minLength
+                        && ATX_HEADING.matcher(line).matches()) {
+                    sections.add(markdown.substring(sectionStart, lineStart));
+                    sectionStart = lineStart;
+                }
+            } else {
+                Matcher m = FENCE_CLOSE.matcher(line);
+                if (m.matches() && m.group(1).charAt(0) == fence.charAt(0) && m.group(1).length() >= fence.length()) {
+                    fence = null;
+                }
+            }
+            lineStart = lineEnd + 1;
+        }
+        sections.add(markdown.substring(sectionStart));
+        return sections;
+    }
+
+    /**
+     * @param first 是否是第一个section，不是的话section以标题开头，去掉parse出来的空的无标题segment
+     */
+    public List<Segment> removeLinkAndSplitSection(String section, String title, boolean first) {
+        List<Segment> segments = removeLinkAndSplit(section, title);
+        return first ? segments : segments.subList(1, segments.size());
+    }
 
     public static String removeImageForMarkItDownBug(String markdownText) {
-        Matcher matcher = IMG_PATTERN.matcher(markdownText);
-        return matcher.replaceAll(""); // 移除匹配内容
+        return ImageScanner.strip(markdownText);
     }
 
 
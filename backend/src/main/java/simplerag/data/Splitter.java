@@ -2,12 +2,21 @@ package simplerag.data;
 
 import simplerag.utils.TokenCounter;
 
+import java.io.BufferedReader;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
 
 public class Splitter {
+    // 切分算法有改动影响输出时加1，增量导入会据此重新导入所有文档
+    public static final int VERSION = 5;
+
     public record SplitterConf(int segmentTriggerSplitLength,
                                int segmentBestLength,
                                int splitBestMin,
@@ -43,34 +52,194 @@ public class Splitter {
     }
 
 
+    /**
+     * 各步骤耗时，用来找出切分慢的文档，不需要时传null
+     */
+    public static final class SplitTimes {
+        public long parseNanos;
+        public long tokenizeNanos;
+        public long cutNanos;
+        public long dpNanos;
+        public int segments;
+    }
+
+    // 超过这个长度的文档按顶层标题分section并行parse和计算token数
+    static final int PARALLEL_MIN_LENGTH = 256 * 1024;
+    // 每个section至少这么长，太碎的话任务调度的开销比parse还大
+    static final int SECTION_MIN_LENGTH = 32 * 1024;
+
     private final TokenCounter tokenCounter;
     private final SplitterConf conf;
+    private final ForkJoinPool pool;
     private final SegmentSplitter parser = new SegmentSplitter();
 
     public Splitter(TokenCounter tokenCounter, SplitterConf conf) {
+        this(tokenCounter, conf, null);
+    }
+
+    /**
+     * @param pool 不为null时大文档在pool里按section并行parse和计算token数，结果和顺序执行一样
+     */
+    public Splitter(TokenCounter tokenCounter, SplitterConf conf, ForkJoinPool pool) {
         this.tokenCounter = tokenCounter;
         this.conf = conf;
+        this.pool = pool;
     }
 
     public List<SplitterChunk> splitMarkdown(String markdownText, String title) {
-        List<Segment> segments = parser.removeLinkAndSplitByHeadings(markdownText, title);
-        Segment.estimateTokenNum(segments, tokenCounter);
-        return splitSegments(segments);
+        return splitMarkdown(markdownText, title, null);
+    }
+
+    public List<SplitterChunk> splitMarkdown(String markdownText, String title, SplitTimes times) {
+        long t0 = System.nanoTime();
+        List<List<Segment>> sections = parse(markdownText, title);
+        List<Segment> segments = sections.size() == 1 ? sections.getFirst() : sections.stream().flatMap(List::stream).toList();
+        long t1 = System.nanoTime();
+        countTokens(segments, sections);
+        if (times != null) {
+            times.parseNanos += t1 - t0;
+            times.tokenizeNanos += System.nanoTime() - t1;
+            times.segments += segments.size();
+        }
+        return splitSegments(segments, times);
+    }
+
+
+    /**
+     * 流式切分大文档，不需要整篇读进内存，chunk生成后马上交给consumer。
+     * segment攒够一个窗口（4倍splitBestMax个token）就做一次DP，输出除最后一个chunk外的所有chunk，
+     * 最后一个chunk的segment留到下个窗口，所以只有窗口边界附近的切分点可能和整篇切分不同
+     */
+    public void splitMarkdown(BufferedReader reader, String title, Consumer<SplitterChunk> consumer) throws IOException {
+        long window = 4L * conf.splitBestMax;
+        List<Segment> pending = new ArrayList<>();
+        long[] pendingTokens = new long[1];
+        parser.splitByHeadings(reader, title, section -> {
+            Segment.estimateTokenNum(section, tokenCounter, conf.segmentTriggerSplitLength);
+            for (Segment segment : cutLargeSegments(section)) {
+                pending.add(segment);
+                pendingTokens[0] += segment.getTokenNum();
+            }
+            if (pendingTokens[0] < window) {
+                return;
+            }
+
+            int[] bestSplit = findBestSplit(tokensOf(pending), levelsOf(pending), conf.splitBestMin, conf.splitBestMax);
+            if (bestSplit == null || bestSplit.length == 0) {
+                return;
+            }
+            int from = 0;
+            for (int splitPoint : bestSplit) {
+                consumer.accept(SplitterChunk.of(pending.subList(from, splitPoint)));
+                from = splitPoint;
+            }
+            List<Segment> rest = new ArrayList<>(pending.subList(from, pending.size()));
+            pending.clear();
+            pending.addAll(rest);
+            pendingTokens[0] = 0;
+            for (Segment segment : pending) {
+                pendingTokens[0] += segment.getTokenNum();
+            }
+        });
+
+        if (!pending.isEmpty()) {
+            int[] bestSplit = findBestSplit(tokensOf(pending), levelsOf(pending), conf.splitBestMin, conf.splitBestMax);
+            int from = 0;
+            if (bestSplit != null) {
+                for (int splitPoint : bestSplit) {
+                    consumer.accept(SplitterChunk.of(pending.subList(from, splitPoint)));
+                    from = splitPoint;
+                }
+            }
+            consumer.accept(SplitterChunk.of(pending.subList(from, pending.size())));
+        }
+    }
+
+    private static int[] tokensOf(List<Segment> segments) {
+        int[] tokens = new int[segments.size()];
+        for (int i = 0; i < tokens.length; i++) {
+            tokens[i] = segments.get(i).getTokenNum();
+        }
+        return tokens;
+    }
+
+    private static int[] levelsOf(List<Segment> segments) {
+        int[] levels = new int[segments.size()];
+        for (int i = 0; i < levels.length; i++) {
+            levels[i] = segments.get(i).getLevel();
+        }
+        return levels;
+    }
+
+    private List<List<Segment>> parse(String markdownText, String title) {
+        if (pool == null || markdownText.length() < PARALLEL_MIN_LENGTH) {
+            return List.of(parser.removeLinkAndSplitByHeadings(markdownText, title));
+        }
+        String md = SegmentSplitter.removeImageForMarkItDownBug(markdownText);
+        List<String> sections = SegmentSplitter.splitSections(md, SECTION_MIN_LENGTH);
+        if (sections.size() == 1) {
+            return List.of(parser.removeLinkAndSplitSection(md, title, true));
+        }
+        List<Callable<List<Segment>>> tasks = new ArrayList<>(sections.size());
+        for (int i = 0; i < sections.size(); i++) {
+            String section = sections.get(i);
+            boolean first = i == 0;
+            tasks.add(() -> parser.removeLinkAndSplitSection(section, title, first));
+        }
+        return invokeAll(tasks);
+    }
+
+    private <T> List<T> invokeAll(List<Callable<T>> tasks) {
+        List<T> result = new ArrayList<>(tasks.size());
+        try {
+            for (Future<T> future : pool.invokeAll(tasks)) {
+                result.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("split interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException re) {
+                throw re;
+            }
+            throw new RuntimeException(e.getCause());
+        }
+        return result;
+    }
+
+    /**
+     * 各section并行计算token数
+     */
+    private void countTokens(List<Segment> segments, List<List<Segment>> sections) {
+        if (sections.size() == 1) {
+            Segment.estimateTokenNum(segments, tokenCounter, conf.segmentTriggerSplitLength);
+        } else {
+            List<Callable<Void>> tasks = new ArrayList<>(sections.size());
+            for (List<Segment> section : sections) {
+                tasks.add(() -> {
+                    Segment.estimateTokenNum(section, tokenCounter, conf.segmentTriggerSplitLength);
+                    return null;
+                });
+            }
+            invokeAll(tasks);
+        }
     }
 
 
     public List<SplitterChunk> splitSegments(List<Segment> segments) {
+        return splitSegments(segments, null);
+    }
+
+    private List<SplitterChunk> splitSegments(List<Segment> segments, SplitTimes times) {
+        long t0 = System.nanoTime();
         List<Segment> refined = cutLargeSegments(segments);
+        long t1 = System.nanoTime();
 
-        int[] tokens = new int[refined.size()];
-        int[] levels = new int[refined.size()];
-        int i = 0;
-        for (Segment seg : refined) {
-            tokens[i] = seg.getTokenNum();
-            levels[i] = seg.getLevel();
-            i++;
+        int[] bestSplit = findBestSplit(tokensOf(refined), levelsOf(refined), conf.splitBestMin, conf.splitBestMax);
+        if (times != null) {
+            times.cutNanos += t1 - t0;
+            times.dpNanos += System.nanoTime() - t1;
         }
-        int[] bestSplit = findBestSplit(tokens, levels, conf.splitBestMin, conf.splitBestMax);
 
         if (bestSplit == null || bestSplit.length == 0) {
             return List.of(SplitterChunk.of(segments));
@@ -111,22 +280,63 @@ public class Splitter {
         return refined;
     }
 
+    /**
+     * body在估算时已经tokenize过，按token的结束位置统计每行的token数，不再逐行tokenize。
+     * 尽量在行边界切；单行就超过limit的（比如巨大的表格行）在token边界切，保证每块都不超过limit。
+     * 切出来的每块都带着原来的标题，limit里先留出标题的token数，加上标题也不超过
+     */
     private void cutLargeSegmentTo(Segment segment, List<Segment> refined) {
         int n = (segment.getBodyTokenNum() + conf.segmentBestLength - 10) / conf.segmentBestLength;
-        int limit = segment.getBodyTokenNum() / n;
+        int limit = segment.getBodyTokenNum() / n - segment.getHeaderTokenNum();
+
+        String body = segment.getBody();
+        int[] ends = segment.getBodyTokenEnds();
+        int specials;
+        if (ends != null) {
+            specials = segment.getBodyTokenNum() - ends.length;
+        } else {
+            TokenCounter.Tokens tokens = tokenCounter.tokenize(List.of(body), 0)[0];
+            ends = tokens.ends();
+            specials = tokens.count() - ends.length;
+        }
+        // 标题太长时每块至少还有一个token
+        limit = Math.max(limit, specials + 1);
 
-        List<String> lines = segment.getBody().lines().toList();
         List<String> cur = new ArrayList<>();
         int curTokens = 0;
+        int t = 0;
+        int lineStart = 0;
+        while (lineStart < body.length()) {
+            int lineEnd = lineStart;
+            while (lineEnd < body.length() && body.charAt(lineEnd) != '\n' && body.charAt(lineEnd) != '\r') {
+                lineEnd++;
+            }
+            // 结束位置落在(lineStart, lineEnd]里的token算这一行的，换行符的token不算
+            while (t < ends.length && ends[t] <= lineStart) {
+                t++;
+            }
+            int from = t;
+            while (t < ends.length && ends[t] <= lineEnd) {
+                t++;
+            }
+            int start = lineStart;
+            lineStart = lineEnd + (body.startsWith("\r\n", lineEnd) ? 2 : 1);
 
-        for (String line : lines) {
+            String line = body.substring(start, lineEnd);
             if (line.isBlank()) { //顺便去除了
                 continue;
             }
+            // 加上special token，和单独对这一行计数一致
+            int lineTokens = t - from + specials;
 
-            int lineTokens = tokenCounter.countTokens(line);
-
-            if (curTokens + lineTokens < limit) {
+            if (lineTokens > limit) {
+                if (!cur.isEmpty()) {
+                    refined.add(new Segment(segment, String.join("\n", cur), curTokens));
+                    cur = new ArrayList<>(4);
+                    curTokens = 0;
+                }
+                cutLongLineTo(segment, body, start, lineEnd, ends, from, t, Math.max(1, limit - specials), specials, refined);
+            } else if (curTokens + lineTokens < limit) {
                 cur.add(line);
                 curTokens += lineTokens;
             } else {
@@ -148,6 +358,31 @@ public class Splitter {
         }
     }
 
+    /**
+     * 在token边界把[start, end)切成每块最多pieceTokens个token
+     */
+    private static void cutLongLineTo(Segment segment, String body, int start, int end,
+                                      int[] ends, int fromToken, int toToken, int pieceTokens, int specials,
+                                      List<Segment> refined) {
+        for (int k = fromToken; k < toToken; k += pieceTokens) {
+            int last = Math.min(k + pieceTokens, toToken);
+            int pieceStart = k == fromToken ? start : ends[k - 1];
+            int pieceEnd = last == toToken ? end : ends[last - 1];
+            String piece = body.substring(pieceStart, pieceEnd);
+            if (!piece.isBlank()) {
+                refined.add(new Segment(segment, piece, last - k + specials));
+            }
+        }
+    }
+
+    /**
+     * dp[i]是从第i个segment开始到结尾的最优切分，只记录分数、下一个切分点和切分点个数，最后沿next还原路径。
+     * 窗口和超过bestNum后偏差分数随j单调增大，偏差加上levelScore已经不小于当前最优时后面的j都不可能更优，直接停止，
+     * 结果和遍历所有j一样。
+     * 多个segment合并后超过limitMax的不考虑，切好的段落加上标题不超过limitMax时，每个chunk都不超过limitMax
+     *
+     * @return 切分点，在这些下标之前切分
+     */
     public static int[] findBestSplit(int[] tokens, int[] levels, int limitMin, int limitMax) {
         int bestNum = (limitMin + limitMax) / 2;
         int numSpace = (limitMax - limitMin) / 2;
@@ -156,12 +391,17 @@ public class Splitter {
         }
 
         int n = tokens.length;
-        int[][] dp = new int[n][];
+        if (n == 0) {
+            return null;
+        }
         double[] dpScore = new double[n];
+        int[] next = new int[n];
+        int[] splitNum = new int[n];
+        boolean[] valid = new boolean[n];
 
         for (int i = n - 1; i >= 0; i--) {
             double minScore = Double.MAX_VALUE;
-            int[] bestSplit = null;
+            int bestNext = -1;
             int level = levels[i];
             double levelScore = 2 * Math.pow(level - 1, 2);
             if (level == 0) {
@@ -171,33 +411,47 @@ public class Splitter {
             double currentSum = 0;
             for (int j = i; j < n; j++) {
                 currentSum += tokens[j];
+                // 超过limitMax的不合并，只有单个segment本身就超过时才允许
+                if (j > i && currentSum > limitMax) {
+                    break;
+                }
                 double diff = Math.abs(currentSum - bestNum) / numSpace;
                 double deviationScore = (diff <= 1) ? 0.5 * diff * diff : diff * diff;
 
+                if (currentSum > bestNum && deviationScore + levelScore >= minScore) {
+                    break;
+                }
+
                 if (j == n - 1) {
                     double totalScore = deviationScore + levelScore;
                     if (totalScore < minScore) {
                         minScore = totalScore;
-                        bestSplit = new int[]{};
+                        bestNext = n;
                     }
-                } else if (dp[j + 1] != null) {
-                    double totalScore = dpScore[j + 1] + deviationScore + levelScore + 0.1 * dp[j + 1].length;
+                } else if (valid[j + 1]) {
+                    double totalScore = dpScore[j + 1] + deviationScore + levelScore + 0.1 * splitNum[j + 1];
                     if (totalScore < minScore) {
                         minScore = totalScore;
-
-                        int[] d = dp[j + 1];
-                        bestSplit = new int[d.length + 1];
-                        bestSplit[0] = j + 1; // 在这之前分割
-                        System.arraycopy(d, 0, bestSplit, 1, d.length);
+                        bestNext = j + 1; // 在这之前分割
                     }
                 }
             }
-            dp[i] = bestSplit;
+            if (bestNext >= 0) {
+                valid[i] = true;
+                next[i] = bestNext;
+                splitNum[i] = bestNext == n ? 0 : splitNum[bestNext] + 1;
+            }
             dpScore[i] = minScore;
-//            System.out.printf("%d: %.04f %s\n", i, minScore, Arrays.stream(bestSplit).boxed().toList().toString());
         }
 
-        return dp[0];
+        if (!valid[0]) {
+            return null;
+        }
+        int[] result = new int[splitNum[0]];
+        for (int k = 0, i = next[0]; i < n; i = next[i]) {
+            result[k++] = i;
+        }
+        return result;
     }
 
 
@@ -0,0 +1,96 @@
+package simplerag.serve;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 限制同时打到weaviate的查询数。
+ * 超过maxInFlight的请求排队等待，队列满了直接拒绝，排队超过queueTimeoutMillis也拒绝；
+ * 流量突增时宁可让一部分请求快速失败，也不要让weaviate被压垮、所有请求一起变慢。
+ */
+public class Bulkhead {
+
+    public record BulkheadConf(int maxInFlight,
+                               int maxQueue,
+                               long queueTimeoutMillis) {
+
+        public static BulkheadConf defaultConf() {
+            return new BulkheadConf(16, 64, 2000);
+        }
+    }
+
+    /**
+     * rejected是队列满直接拒绝的，timedOut是排队超时的
+     */
+    public record Stats(int inFlight,
+                        int queued,
+                        long admitted,
+                        long rejected,
+                        long timedOut) {
+
+        @Override
+        public String toString() {
+            return String.format("inFlight=%d queued=%d admitted=%d rejected=%d timedOut=%d",
+                    inFlight, queued, admitted, rejected, timedOut);
+        }
+    }
+
+    private final BulkheadConf conf;
+    // 公平的，先排队的先进
+    private final Semaphore permits;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+
+    public Bulkhead(BulkheadConf conf) {
+        if (conf.maxInFlight <= 0 || conf.maxQueue < 0) {
+            throw new IllegalArgumentException("invalid bulkhead conf: " + conf);
+        }
+        this.conf = conf;
+        this.permits = new Semaphore(conf.maxInFlight, true);
+    }
+
+    /**
+     * 返回true时调用者必须在finally里{@link #release()}
+     *
+     * @return false表示被拒绝，队列满了或排队超时
+     */
+    public boolean tryAcquire() throws InterruptedException {
+        // 公平模式下带超时的tryAcquire不会插队到排队的请求前面
+        if (permits.tryAcquire(0, TimeUnit.MILLISECONDS)) {
+            admitted.increment();
+            return true;
+        }
+        if (queued.incrementAndGet() > conf.maxQueue) {
+            queued.decrementAndGet();
+            rejected.increment();
+            return false;
+        }
+        try {
+            if (permits.tryAcquire(conf.queueTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                admitted.increment();
+                return true;
+            }
+            timedOut.increment();
+            return false;
+        } finally {
+            queued.decrementAndGet();
+        }
+    }
+
+    public void release() {
+        permits.release();
+    }
+
+    public BulkheadConf getConf() {
+        return conf;
+    }
+
+    public Stats stats() {
+        return new Stats(conf.maxInFlight - permits.availablePermits(), queued.get(),
+                admitted.sum(), rejected.sum(), timedOut.sum());
+    }
+}
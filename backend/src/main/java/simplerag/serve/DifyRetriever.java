@@ -2,6 +2,7 @@ package simplerag.serve;
 
 import com.alibaba.fastjson2.JSON;
 import com.alibaba.fastjson2.JSONObject;
+import com.alibaba.fastjson2.JSONWriter;
 import com.alibaba.fastjson2.annotation.JSONField;
 import io.javalin.Javalin;
 import io.javalin.config.JavalinConfig;
@@ -9,15 +10,21 @@ import io.javalin.config.Key;
 import io.javalin.http.ContentType;
 import io.javalin.http.Context;
 import io.javalin.http.Handler;
+import io.javalin.http.Header;
+import io.javalin.http.HttpStatus;
 import io.weaviate.client.Config;
-import io.weaviate.client.WeaviateClient;
 import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import simplerag.service.CachedEmbedder;
 import simplerag.service.ChunkService;
+import simplerag.service.OpenAiEmbedder;
+import simplerag.service.QueryEmbedder;
+import simplerag.service.RetrieveCache;
+import simplerag.utils.MicroBatcher;
 import simplerag.utils.StringOrListDeserializer;
 
-import java.util.ArrayList;
+import java.time.Duration;
 import java.util.List;
 import java.util.Map;
 
@@ -120,6 +127,14 @@ public class DifyRetriever implements Handler {
         public static final int InvalidAuthorizationHeaderFormat = 1001;
         public static final int AuthorizationFailed = 1002;
         public static final int KnowledgeNotExist = 2001;
+        // 不是dify定义的，排队超时或队列满时返回，dify那边会当成这次检索失败
+        public static final int ServiceBusy = 3001;
+    }
+
+    private final Bulkhead bulkhead;
+
+    public DifyRetriever(Bulkhead bulkhead) {
+        this.bulkhead = bulkhead;
     }
 
     @Override
@@ -138,58 +153,133 @@ public class DifyRetriever implements Handler {
         logger.info("retrieve query: {}, project: {}", req.query.replace("\n", "\\n"), projectName);
 
         ChunkService chunkService = ctx.appData(CHUNK_SERVICE_KEY);
-        List<RetrieveChunk> result = chunkService.retrieve(req.query, projectName);
-        List<RetrieveRecord> records = getRetrieveRecords(result);
-        String jsonString = JSON.toJSONString(new RetrieveResponse(records));
-        ctx.contentType(ContentType.JSON).result(jsonString);
-    }
-
-    @NotNull
-    private static List<RetrieveRecord> getRetrieveRecords(List<RetrieveChunk> result) {
-        List<RetrieveRecord> records = new ArrayList<>(result.size());
-        for (RetrieveChunk chunk : result) {
-            RetrieveRecord record = new RetrieveRecord(
-                    chunk.body,
-                    chunk.getAdditional().getDistance() != null ? chunk.getAdditional().getDistance() : 0f,
-                    chunk.docTitle,
-                    new JSONObject(Map.of("docId", chunk.docId,
-                            "docProject", chunk.docProject,
-                            "docUrl", chunk.docUrl)));
-            records.add(record);
+        boolean admitted;
+        try {
+            admitted = bulkhead.tryAcquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            admitted = false;
+        }
+        if (!admitted) {
+            logger.warn("retrieve shed, bulkhead: {}", bulkhead.stats());
+            ctx.status(HttpStatus.SERVICE_UNAVAILABLE)
+                    .header(Header.RETRY_AFTER, "1")
+                    .contentType(ContentType.JSON)
+                    .result(JSON.toJSONString(new RetrieveError(RetrieveError.ServiceBusy, "too many concurrent retrievals")));
+            return;
+        }
+        List<RetrieveChunk> result;
+        try {
+            result = chunkService.retrieve(req.query, projectName, optionsOf(req.retrieval_setting));
+        } finally {
+            bulkhead.release();
+        }
+        ctx.contentType(ContentType.JSON).result(writeResponse(result));
+    }
+
+    private static RetrieveOptions optionsOf(RetrieveSetting setting) {
+        RetrieveOptions def = RetrieveOptions.defaultOptions();
+        if (setting == null) {
+            return def;
+        }
+        return new RetrieveOptions(Math.max(0, setting.top_k), setting.score_threshold, def.autocut(), def.properties());
+    }
+
+    /**
+     * 按{@link RetrieveResponse}的格式直接写出json，不再生成RetrieveRecord和JSONObject
+     */
+    static byte[] writeResponse(List<RetrieveChunk> result) {
+        try (JSONWriter w = JSONWriter.ofUTF8()) {
+            w.startObject();
+            w.writeName("records");
+            w.writeColon();
+            w.startArray();
+            for (int i = 0; i < result.size(); i++) {
+                RetrieveChunk chunk = result.get(i);
+                if (i > 0) {
+                    w.writeComma();
+                }
+                w.startObject();
+                w.writeName("content");
+                w.writeColon();
+                w.writeString(chunk.body());
+                w.writeName("score");
+                w.writeColon();
+                w.writeFloat(chunk.score() != null ? chunk.score() : 0f);
+                w.writeName("title");
+                w.writeColon();
+                w.writeString(chunk.docTitle());
+                w.writeName("metadata");
+                w.writeColon();
+                w.startObject();
+                w.writeName("docId");
+                w.writeColon();
+                w.writeString(chunk.docId());
+                w.writeName("docProject");
+                w.writeColon();
+                w.writeString(chunk.docProject());
+                w.writeName("docUrl");
+                w.writeColon();
+                w.writeString(chunk.docUrl());
+                w.endObject();
+                w.endObject();
+            }
+            w.endArray();
+            w.endObject();
+            return w.getBytes();
         }
-        return records;
     }
 
     public static final Key<ChunkService> CHUNK_SERVICE_KEY = new Key<>("ChunkService");
 
     private static void initConfig(JavalinConfig config) {
+        // 一个请求要等weaviate和ollama，阻塞的是虚拟线程，不占jetty的平台线程；并发量由Bulkhead限制
+        config.useVirtualThreads = true;
 //        config.appData(CHUNK_SERVICE_KEY, new ChunkService());
 
-        ChunkService chunkService = new ChunkService(new WeaviateClient(new Config("http", "localhost:8080")),
+        // query的向量在这边算，和chunk用同一个ollama模型，热门问题的向量缓存起来
+        QueryEmbedder embedder = new CachedEmbedder(
+                new OpenAiEmbedder("http://10.5.9.169:11434", "Qwen3-Embedding-4B", Duration.ofSeconds(10)), 10000);
+        ChunkService chunkService = new ChunkService(new Config("http", "localhost:8080"),
                 "Chunk4B",
                 Map.of("apiEndpoint", "http://10.5.9.169:11434",
-                        "model", "Qwen3-Embedding-4B"));
+                        "model", "Qwen3-Embedding-4B"),
+                RetrieveCache.CacheConf.defaultConf(),
+                embedder,
+                MicroBatcher.BatchConf.defaultConf());
         config.appData(CHUNK_SERVICE_KEY, chunkService);
     }
 
     public static void runApp() {
+        Bulkhead bulkhead = new Bulkhead(Bulkhead.BulkheadConf.defaultConf());
         var app = Javalin.create(DifyRetriever::initConfig)
                 .get("/", ctx -> ctx.result("Hello World"))
-                .post("/retrieval", new DifyRetriever());
+                .post("/retrieval", new DifyRetriever(bulkhead))
+                .get("/retrieval/stats", ctx -> {
+                    ChunkService chunkService = ctx.appData(CHUNK_SERVICE_KEY);
+                    String stats = "retrieve: " + chunkService.getRetrieveCacheStats()
+                            + "\nsingleFlight: " + chunkService.getRetrieveFlightStats()
+                            + "\nbatch: " + chunkService.getSearchBatchStats()
+                            + "\nbulkhead: " + bulkhead.stats();
+                    if (chunkService.getQueryEmbedder() instanceof CachedEmbedder cached) {
+                        stats += "\nembed: " + cached.stats();
+                    }
+                    ctx.result(stats);
+                });
 
         app.start("0.0.0.0", 7000);
     }
 
     public static void main(String[] args) {
-        ChunkService chunkService = new ChunkService(new WeaviateClient(new Config("http", "localhost:8080")),
+        ChunkService chunkService = new ChunkService(new Config("http", "localhost:8080"),
                 "Chunk4B",
                 Map.of("apiEndpoint", "http://10.5.9.169:11434",
                         "model", "Qwen3-Embedding-4B"));
         List<RetrieveChunk> result = chunkService.retrieve("竖屏横屏切换", null);
         System.out.println("query result size: " + result.size());
         for (RetrieveChunk c : result) {
-            System.out.printf("----- %s  %s -----\n", c.docProject, c.docTitle);
-            System.out.println(c.body);
+            System.out.printf("----- %s  %s -----\n", c.docProject(), c.docTitle());
+            System.out.println(c.body());
         }
     }
 
@@ -0,0 +1,207 @@
+package simplerag.serve;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+/**
+ * 文档目录结构是 dir/日期/项目/...md，每个日期目录是一次快照，同一个docId以最新快照为准。
+ * <p>
+ * 所有(日期, 项目)目录并行遍历，遍历时docId已经被更新的快照占了的就不保留，
+ * 最后从新到旧合并，docId已经有了的旧版本直接跳过。
+ * compareStat打开时，用文件大小和修改时间判断新快照是否真的改了这个文件，只对改了的打日志；
+ * 这需要把所有旧版本都留在内存里，只用来排查问题，正常导入不要打开。
+ */
+public class DocResolver {
+
+    private static final Logger logger = LoggerFactory.getLogger(DocResolver.class.getName());
+
+    public record DocRoot(String dirType,
+                          Path dir,
+                          Map<String, String> projectMap, // null表示目录名就是项目名
+                          Charset encoding) {
+
+        /**
+         * @return 项目目录对应的项目名，不需要导入的返回null
+         */
+        public String projectOf(String projectDirName) {
+            if (projectMap == null) {
+                return projectDirName;
+            }
+            return projectMap.get(projectDirName);
+        }
+    }
+
+    private record ProjectDir(DocRoot root,
+                              String date,
+                              String project,
+                              Path dir) {
+    }
+
+    private final boolean compareStat;
+
+    public DocResolver(boolean compareStat) {
+        this.compareStat = compareStat;
+    }
+
+    public Map<String, Importer.DocPath> resolve(List<DocRoot> roots) throws IOException {
+        List<ProjectDir> projectDirs = new ArrayList<>();
+        for (DocRoot root : roots) {
+            listProjectDirs(root, projectDirs);
+        }
+
+        // docId -> 目前见到的最新的快照序号（projectDirs下标，越小越新）
+        Map<String, Integer> claimed = new ConcurrentHashMap<>();
+        List<Future<List<Importer.DocPath>>> futures = new ArrayList<>(projectDirs.size());
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < projectDirs.size(); i++) {
+                ProjectDir pd = projectDirs.get(i);
+                int rank = i;
+                futures.add(executor.submit(() -> walk(pd, rank, claimed)));
+            }
+
+            Map<String, Importer.DocPath> result = new LinkedHashMap<>();
+            // docId -> 目前合并到的最旧的版本，用来和下一个更旧的版本比较
+            Map<String, Importer.DocPath> newer = new HashMap<>();
+            int superseded = 0;
+            int changed = 0;
+            for (int i = 0; i < futures.size(); i++) {
+                List<Importer.DocPath> docs = futures.get(i).get();
+                String date = projectDirs.get(i).date();
+                for (Importer.DocPath dp : docs) {
+                    Importer.DocPath exist = result.putIfAbsent(dp.docId(), dp);
+                    if (exist == null) {
+                        if (compareStat) {
+                            newer.put(dp.docId(), dp);
+                        }
+                        continue;
+                    }
+
+                    superseded++;
+                    if (compareStat) {
+                        Importer.DocPath n = newer.put(dp.docId(), dp);
+                        if (n.size() != dp.size() || n.lastModified() != dp.lastModified()) {
+                            changed++;
+                            logger.info("updateDoc {} after {}", dp.docId(), date);
+                        }
+                    }
+                }
+            }
+            logger.info("resolve {} docs from {} dirs, superseded: {}, changed: {}",
+                    result.size(), projectDirs.size(), superseded, compareStat ? changed : "-");
+            return result;
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("resolve interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io) {
+                throw io;
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * 只解析一个文档：从新到旧找第一个包含它的快照，都没有了返回null
+     *
+     * @param relative 相对项目目录的路径，包括.md后缀
+     */
+    public static Importer.DocPath resolveLatest(DocRoot root, String projectDirName, String relative) throws IOException {
+        String project = root.projectOf(projectDirName);
+        if (project == null) {
+            return null;
+        }
+        for (Path dateDir : listDateDirs(root)) {
+            Path projectDir = dateDir.resolve(projectDirName);
+            Path f = projectDir.resolve(relative);
+            if (Files.isRegularFile(f)) {
+                return toDocPath(root, project, projectDir, f, Files.readAttributes(f, BasicFileAttributes.class));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 按日期从新到旧
+     */
+    static List<Path> listDateDirs(DocRoot root) throws IOException {
+        List<Path> dateList = new ArrayList<>(16);
+        try (Stream<Path> dirStream = Files.list(root.dir())) {
+            dirStream.filter(Files::isDirectory).forEach(dateList::add);
+        }
+        dateList.sort(Comparator.comparing((Path a) -> a.getFileName().toString()).reversed());
+        return dateList;
+    }
+
+    private static void listProjectDirs(DocRoot root, List<ProjectDir> result) throws IOException {
+        for (Path dateDir : listDateDirs(root)) {
+            String date = dateDir.getFileName().toString();
+            List<Path> projectList = new ArrayList<>(8);
+            try (Stream<Path> dirStream = Files.list(dateDir)) {
+                dirStream.filter(Files::isDirectory).forEach(projectList::add);
+            }
+            projectList.sort(Comparator.comparing(a -> a.getFileName().toString()));
+            for (Path projectDir : projectList) {
+                String project = root.projectOf(projectDir.getFileName().toString());
+                if (project != null) {
+                    result.add(new ProjectDir(root, date, project, projectDir));
+                }
+            }
+        }
+    }
+
+    private List<Importer.DocPath> walk(ProjectDir pd, int rank, Map<String, Integer> claimed) throws IOException {
+        List<Importer.DocPath> docs = new ArrayList<>();
+        Files.walkFileTree(pd.dir(), new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path f, BasicFileAttributes attrs) {
+                // walkFileTree对每个目录项都stat一次（Linux上JDK不用readdir返回的类型），
+                // attrs就是这次的结果，toDocPath里不用再stat；旧快照的文件也一样要stat，省掉的只是后面的处理
+                if (attrs.isRegularFile()) {
+                    Importer.DocPath dp = toDocPath(pd.root(), pd.project(), pd.dir(), f, attrs);
+                    // 更新的快照里已经有了，compareStat时还要留着做比较
+                    if (dp != null && (claimed.merge(dp.docId(), rank, Math::min) == rank || compareStat)) {
+                        docs.add(dp);
+                    }
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return docs;
+    }
+
+    static String docIdOf(DocRoot root, String project, String relative) {
+        String relativizeF = relative.replace("\\", "/");
+        return root.dirType() + "/" + project + "/" + relativizeF.substring(0, relativizeF.length() - 3);
+    }
+
+    static boolean isMarkdown(String fileName) {
+        return fileName.endsWith(".md") || fileName.endsWith(".MD");
+    }
+
+    /**
+     * @return 不是md文件返回null
+     */
+    static Importer.DocPath toDocPath(DocRoot root, String project, Path projectDir, Path f, BasicFileAttributes attrs) {
+        String fn = f.getFileName().toString();
+        if (!isMarkdown(fn)) {
+            return null;
+        }
+        String title = fn.substring(0, fn.length() - 3);
+        String docId = docIdOf(root, project, projectDir.relativize(f).toString());
+        return new Importer.DocPath(docId, f, root.encoding(), project, title, "",
+                attrs.size(), attrs.lastModifiedTime().toMillis());
+    }
+}
@@ -0,0 +1,180 @@
+package simplerag.serve;
+
+import com.alibaba.fastjson2.JSON;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 导入的预写日志，每个文档到了哪一步（split, submitted, acked）追加一行。
+ * <p>
+ * 不是每条都fsync，后台线程按间隔统一fsync；挂掉最多丢最近一个间隔的记录，
+ * 这些文档下次会重新导入，chunk id是确定性的，重复写入没关系。
+ * 重启时把acked的记录重放到manifest上，就只剩没完成的文档需要导入了。
+ * 导入成功结束后manifest落盘，日志清空。
+ */
+public class ImportJournal implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(ImportJournal.class.getName());
+
+    public enum Stage {
+        SPLIT,
+        SUBMITTED,
+        ACKED,
+        DELETED,
+    }
+
+    public record JournalRecord(Stage stage,
+                                String docId,
+                                String hash,
+                                List<String> chunkIds,
+                                String splitterVersion) {
+    }
+
+    private final Path path;
+    private final FileChannel channel;
+    private final Writer writer;
+    private final Thread syncer;
+    private boolean dirty;
+    private volatile boolean closed;
+
+    private ImportJournal(Path path, long syncIntervalMillis) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        this.writer = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(channel),
+                StandardCharsets.UTF_8), 64 * 1024);
+        this.syncer = Thread.ofVirtual().name("import-journal-sync").start(() -> syncLoop(syncIntervalMillis));
+    }
+
+    public static ImportJournal open(Path path) throws IOException {
+        return new ImportJournal(path, 200);
+    }
+
+    /**
+     * 把上次没compact的日志重放到manifest上
+     *
+     * @return 上次开始了但没有完成的文档数
+     */
+    public int replay(ImportManifest manifest) throws IOException {
+        Set<String> unfinished = new HashSet<>();
+        int acked = 0;
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                JournalRecord r;
+                try {
+                    r = JSON.parseObject(line, JournalRecord.class);
+                } catch (RuntimeException e) {
+                    // 挂掉时最后一行可能只写了一半，fastjson解析半行不一定抛JSONException
+                    logger.warn("skip broken journal line: {}", line);
+                    continue;
+                }
+                if (r == null || r.stage() == null) {
+                    continue;
+                }
+                switch (r.stage()) {
+                    case SPLIT, SUBMITTED -> unfinished.add(r.docId());
+                    case ACKED -> {
+                        manifest.put(r.docId(), new ImportManifest.DocEntry(r.hash(), r.chunkIds(), r.splitterVersion()));
+                        unfinished.remove(r.docId());
+                        acked++;
+                    }
+                    case DELETED -> {
+                        manifest.remove(r.docId());
+                        unfinished.remove(r.docId());
+                    }
+                }
+            }
+        }
+        if (acked > 0 || !unfinished.isEmpty()) {
+            logger.info("replay journal {}, acked: {}, unfinished: {}", path, acked, unfinished.size());
+        }
+        return unfinished.size();
+    }
+
+    public void split(String docId) {
+        append(new JournalRecord(Stage.SPLIT, docId, null, null, null));
+    }
+
+    public void submitted(String docId) {
+        append(new JournalRecord(Stage.SUBMITTED, docId, null, null, null));
+    }
+
+    public void acked(String docId, ImportManifest.DocEntry entry) {
+        append(new JournalRecord(Stage.ACKED, docId, entry.hash(), entry.chunkIds(), entry.splitterVersion()));
+    }
+
+    public void deleted(String docId) {
+        append(new JournalRecord(Stage.DELETED, docId, null, null, null));
+    }
+
+    private synchronized void append(JournalRecord record) {
+        try {
+            writer.write(JSON.toJSONString(record));
+            writer.write('\n');
+            dirty = true;
+        } catch (IOException e) {
+            logger.error("append journal {} failed", record.docId(), e);
+        }
+    }
+
+    public void sync() throws IOException {
+        synchronized (this) {
+            if (!dirty) {
+                return;
+            }
+            writer.flush();
+            dirty = false;
+        }
+        // fsync不持锁，不挡住其他线程append
+        channel.force(false);
+    }
+
+    private void syncLoop(long intervalMillis) {
+        while (!closed) {
+            try {
+                Thread.sleep(intervalMillis);
+                sync();
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                logger.error("sync journal {} failed", path, e);
+            }
+        }
+    }
+
+    /**
+     * manifest已经落盘后调用，日志里的内容都已经体现在manifest里了
+     */
+    public synchronized void compact() throws IOException {
+        writer.flush();
+        channel.truncate(0);
+        channel.force(true);
+        dirty = false;
+        logger.info("compact journal {}", path);
+    }
+
+    @Override
+    public void close() throws IOException {
+        // 不能interrupt，FileChannel在force时被interrupt会直接关闭
+        closed = true;
+        try {
+            syncer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        sync();
+        writer.close();
+    }
+}
@@ -0,0 +1,130 @@
+package simplerag.serve;
+
+import com.alibaba.fastjson2.JSON;
+import com.alibaba.fastjson2.JSONWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 记录每个文档上次导入时的内容hash和chunk id，用来做增量导入：
+ * 内容没变的跳过，变了的替换，磁盘上没有了的从weaviate删除
+ */
+public class ImportManifest {
+
+    private static final Logger logger = LoggerFactory.getLogger(ImportManifest.class.getName());
+
+    /**
+     * @param splitterVersion 导入这个文档时的切分配置，配置变了之后还没重新导入成功的文档保留旧的版本
+     */
+    public record DocEntry(String hash,
+                           List<String> chunkIds,
+                           String splitterVersion) {
+    }
+
+    /**
+     * @param splitterVersion 旧格式的entry里没有切分配置版本，用这个
+     */
+    public record ManifestFile(String splitterVersion,
+                               Map<String, DocEntry> docs) {
+    }
+
+    private final Path path;
+    private final String splitterVersion;
+    private final Map<String, DocEntry> docs;
+
+    private ImportManifest(Path path, String splitterVersion, Map<String, DocEntry> docs) {
+        this.path = path;
+        this.splitterVersion = splitterVersion;
+        this.docs = docs;
+    }
+
+    public static ImportManifest load(Path path, String splitterVersion) throws IOException {
+        Map<String, DocEntry> docs = new ConcurrentHashMap<>();
+        if (Files.exists(path)) {
+            ManifestFile file = JSON.parseObject(Files.readString(path), ManifestFile.class);
+            if (file != null && file.docs() != null) {
+                file.docs().forEach((docId, entry) -> docs.put(docId, entry.splitterVersion() != null ? entry
+                        : new DocEntry(entry.hash(), entry.chunkIds(), file.splitterVersion())));
+            }
+            // 切分配置变了的文档都要重新导入，但旧的chunk id要留着用来删除
+            long outdated = docs.values().stream()
+                    .filter(entry -> !splitterVersion.equals(entry.splitterVersion()))
+                    .count();
+            logger.info("load manifest {} docs, splitter changed: {} docs", docs.size(), outdated);
+        }
+        return new ImportManifest(path, splitterVersion, docs);
+    }
+
+    public boolean isUpToDate(String docId, String hash) {
+        DocEntry entry = docs.get(docId);
+        return entry != null && entry.hash().equals(hash) && splitterVersion.equals(entry.splitterVersion());
+    }
+
+    /**
+     * 用当前的切分配置导入成功的entry
+     */
+    public DocEntry newEntry(String hash, List<String> chunkIds) {
+        return new DocEntry(hash, chunkIds, splitterVersion);
+    }
+
+    public DocEntry get(String docId) {
+        return docs.get(docId);
+    }
+
+    public void put(String docId, DocEntry entry) {
+        docs.put(docId, entry);
+    }
+
+    public DocEntry remove(String docId) {
+        return docs.remove(docId);
+    }
+
+    public Set<String> docIds() {
+        return docs.keySet();
+    }
+
+    public void save() throws IOException {
+        // 先写临时文件再rename，中途挂掉不会留下半个manifest
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        byte[] bytes = JSON.toJSONBytes(new ManifestFile(splitterVersion, new TreeMap<>(docs)),
+                JSONWriter.Feature.PrettyFormat);
+        Files.write(tmp, bytes);
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        logger.info("save manifest {} docs to {}", docs.size(), path);
+    }
+
+    public static String hash(byte[] content) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256算法不可用", e);
+        }
+    }
+
+    /**
+     * 和hash(Files.readAllBytes(file))一样，但不把整个文件读进内存
+     */
+    public static String hash(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buf = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                digest.update(buf, 0, n);
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256算法不可用", e);
+        }
+    }
+}
@@ -0,0 +1,397 @@
+package simplerag.serve;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import simplerag.data.Doc;
+import simplerag.data.Splitter;
+import simplerag.service.Chunk;
+import simplerag.service.ChunkBatchWriter;
+import simplerag.service.ChunkService;
+import simplerag.utils.TokenCounter;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * 导入流水线：read -> split -> write -> {@link ChunkBatchWriter}
+ * <p>
+ * 每个stage有自己的有界队列和线程，读文件和写weaviate用虚拟线程，切分用平台线程（cpu密集）。
+ * 下游处理不过来时队列满，上游put阻塞，内存不会无限增长。
+ * 跨文档凑batch由ChunkBatchWriter负责，文档写完后在回调里删旧chunk、更新manifest。
+ */
+public class ImportPipeline {
+
+    private static final Logger logger = LoggerFactory.getLogger(ImportPipeline.class.getName());
+    // 流式切分时每攒够这么多chunk就提交给writer
+    private static final int STREAM_SLICE = 64;
+
+    public record PipelineConf(int readThreads,
+                               int splitThreads,
+                               int writeThreads,
+                               int queueCapacity,
+                               long streamThresholdBytes,
+                               ChunkBatchWriter.WriterConf writerConf) {
+
+        public static PipelineConf defaultConf() {
+            return new PipelineConf(8, Runtime.getRuntime().availableProcessors(), 4, 64, 32 * 1024 * 1024,
+                    ChunkBatchWriter.WriterConf.defaultConf());
+        }
+    }
+
+    public record ImportResult(int imported,
+                               int skipped,
+                               int failed) {
+    }
+
+    /**
+     * @param md     大文件流式切分，这里是null
+     * @param oldIds 上次导入的chunk id，写完新的之后删掉已经不存在的
+     */
+    private record ReadDoc(Importer.DocPath path,
+                           String md,
+                           String hash,
+                           List<String> oldIds,
+                           ImportStats.DocCost cost) {
+    }
+
+    private record SplitDoc(Doc doc,
+                            String hash,
+                            List<Splitter.SplitterChunk> chunks,
+                            List<String> oldIds,
+                            ImportStats.DocCost cost) {
+    }
+
+    private final ChunkService chunkService;
+    private final ImportManifest manifest;
+    private final ImportJournal journal;
+    private final PipelineConf conf;
+    private final TokenCounter tokenCounter;
+    private final ThreadLocal<Splitter> splitters;
+
+    private final AtomicInteger imported = new AtomicInteger();
+    private final AtomicInteger skipped = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private volatile ImportStats stats;
+
+    public ImportPipeline(ChunkService chunkService, ImportManifest manifest, ImportJournal journal,
+                          TokenCounter tokenCounter, Splitter.SplitterConf splitterConf, PipelineConf conf) {
+        this.chunkService = chunkService;
+        this.manifest = manifest;
+        this.journal = journal;
+        this.conf = conf;
+        this.tokenCounter = tokenCounter;
+        this.splitters = ThreadLocal.withInitial(() -> new Splitter(tokenCounter, splitterConf, ForkJoinPool.commonPool()));
+    }
+
+    public ImportResult run(Collection<Importer.DocPath> docs) throws InterruptedException {
+        imported.set(0);
+        skipped.set(0);
+        failed.set(0);
+        stats = new ImportStats(10);
+        ThreadFactory virtual = Thread.ofVirtual().name("import-io-", 0).factory();
+        ThreadFactory splitFactory = Thread.ofPlatform().name("import-split-", 0).factory();
+        // 每次run都是新的切分线程，结束时把tokenizer还回去，下次run的线程接着用
+        ThreadFactory platform = r -> splitFactory.newThread(() -> {
+            try {
+                r.run();
+            } finally {
+                tokenCounter.releaseThread();
+                splitters.remove();
+            }
+        });
+
+        ChunkBatchWriter writer = chunkService.newBatchWriter(conf.writerConf);
+        try (writer) {
+            Stage<SplitDoc> write = new Stage<>("write", conf.writeThreads, conf.queueCapacity, virtual,
+                    sd -> write(sd, writer), sd -> sd.doc().id());
+            Stage<ReadDoc> split = new Stage<>("split", conf.splitThreads, conf.queueCapacity, platform,
+                    rd -> split(rd, write, writer), rd -> rd.path().docId());
+            Stage<Importer.DocPath> read = new Stage<>("read", conf.readThreads, conf.queueCapacity, virtual,
+                    dp -> read(dp, split), Importer.DocPath::docId);
+
+            // 定时打印进度和各队列深度，哪个队列一直满说明它后面的stage是瓶颈
+            int total = docs.size();
+            ScheduledExecutorService progress = Executors.newSingleThreadScheduledExecutor(
+                    Thread.ofPlatform().name("import-progress").daemon().factory());
+            progress.scheduleAtFixedRate(() -> stats.logProgress(total, () -> String.format(
+                            "read=%d split=%d write=%d writer=%d, batch size=%d",
+                            read.queueSize(), split.queueSize(), write.queueSize(),
+                            writer.getPendingObjects(), writer.getBatchSize())),
+                    10, 10, TimeUnit.SECONDS);
+            try {
+                for (Importer.DocPath dp : docs) {
+                    read.put(dp);
+                }
+                read.close();
+                split.close();
+                write.close();
+            } finally {
+                progress.shutdownNow();
+            }
+        }
+        logger.info("writer {} batches, {} objects, avg {}ms per batch, {} retries",
+                writer.getBatches(), writer.getObjects(),
+                writer.getBatches() > 0 ? TimeUnit.NANOSECONDS.toMillis(writer.getSendNanos() / writer.getBatches()) : 0,
+                writer.getRetries());
+        stats.logReport();
+        if (tokenCounter.getCacheStats() != null) {
+            logger.info("token cache {}", tokenCounter.getCacheStats());
+        }
+
+        return new ImportResult(imported.get(), skipped.get(), failed.get());
+    }
+
+    private void read(Importer.DocPath dp, Stage<ReadDoc> next) throws InterruptedException {
+        ImportStats.DocCost cost = new ImportStats.DocCost(dp.docId());
+        long start = System.nanoTime();
+        // 大文件只算hash，切分时再流式读
+        boolean stream = dp.size() > conf.streamThresholdBytes;
+        byte[] content = null;
+        String hash;
+        try {
+            if (stream) {
+                hash = ImportManifest.hash(dp.path());
+            } else {
+                content = Files.readAllBytes(dp.path());
+                hash = ImportManifest.hash(content);
+            }
+        } catch (IOException e) {
+            logger.error("read file {} failed", dp.docId(), e);
+            fail();
+            return;
+        }
+        if (manifest.isUpToDate(dp.docId(), hash)) {
+            skipped.incrementAndGet();
+            stats.addSkipped();
+            return;
+        }
+        // 可能要查weaviate，放在io的read stage，不占切分线程
+        List<String> oldIds;
+        try {
+            oldIds = oldChunkIds(dp.docId());
+        } catch (IOException e) {
+            logger.error("find old chunks of {} failed", dp.docId(), e);
+            fail();
+            return;
+        }
+        String md = content != null ? new String(content, dp.encoding()) : null;
+        cost.bytes = content != null ? content.length : dp.size();
+        cost.readNanos = System.nanoTime() - start;
+        stats.addRead(cost);
+        next.put(new ReadDoc(dp, md, hash, oldIds, cost));
+    }
+
+    private void split(ReadDoc rd, Stage<SplitDoc> next, ChunkBatchWriter writer) throws InterruptedException {
+        if (rd.md() == null) {
+            streamSplit(rd, writer);
+            return;
+        }
+        Importer.DocPath dp = rd.path();
+        ImportStats.DocCost cost = rd.cost();
+        List<Splitter.SplitterChunk> chunks = splitters.get().splitMarkdown(rd.md(), dp.title(), cost.splitTimes);
+        for (Splitter.SplitterChunk chunk : chunks) {
+            cost.tokens += chunk.token();
+        }
+        cost.chunks = chunks.size();
+        stats.addSplit(cost);
+        Doc doc = newDoc(dp, rd.md());
+        journal.split(dp.docId());
+        next.put(new SplitDoc(doc, rd.hash(), chunks, rd.oldIds(), cost));
+    }
+
+    /**
+     * 大文件边切分边提交给writer，每次只留一小片chunk在内存里；write stage不经手
+     */
+    private void streamSplit(ReadDoc rd, ChunkBatchWriter writer) throws InterruptedException {
+        Importer.DocPath dp = rd.path();
+        ImportStats.DocCost cost = rd.cost();
+        Set<String> chunkIds = new LinkedHashSet<>();
+        List<Splitter.SplitterChunk> slice = new ArrayList<>(STREAM_SLICE);
+        cost.submitNanos = System.nanoTime();
+        // 回调在finish或abort之后，那时chunkIds已经不会再变了
+        ChunkBatchWriter.DocStream stream = writer.open(newDoc(dp, ""),
+                (doc, ok) -> onWritten(doc, rd.hash(), new ArrayList<>(chunkIds), cost, rd.oldIds(), ok));
+        long start = System.nanoTime();
+        // 和new String(bytes, encoding)一样，非法字节替换掉而不是抛异常
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(Files.newInputStream(dp.path()), dp.encoding()))) {
+            splitters.get().splitMarkdown(reader, dp.title(), chunk -> {
+                cost.tokens += chunk.token();
+                cost.chunks++;
+                chunkIds.add(Chunk.genChunkUuid(dp.docId(), chunk.markdown()));
+                slice.add(chunk);
+                if (slice.size() >= STREAM_SLICE) {
+                    submitSlice(stream, slice);
+                }
+            });
+            submitSlice(stream, slice);
+        } catch (IOException | RuntimeException e) {
+            logger.error("stream split {} failed", dp.docId(), e);
+            // 已经提交的写完后回调失败，在回调里计数
+            stream.abort();
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedException();
+            }
+            return;
+        }
+        cost.splitTimes.parseNanos += System.nanoTime() - start;
+        stats.addSplit(cost);
+        journal.split(dp.docId());
+        journal.submitted(dp.docId());
+        logger.info("stream split {}, size: {}", dp.docId(), dp.size());
+        stream.finish();
+    }
+
+    /**
+     * splitMarkdown的consumer不能抛InterruptedException，包一层，中断标记保留
+     */
+    private static void submitSlice(ChunkBatchWriter.DocStream stream, List<Splitter.SplitterChunk> slice) {
+        try {
+            stream.submit(slice);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UncheckedIOException(new InterruptedIOException("stream split interrupted"));
+        }
+        slice.clear();
+    }
+
+    private static Doc newDoc(Importer.DocPath dp, String md) {
+        return new Doc(dp.docId(), dp.title(), md, dp.project(), dp.url(),
+                List.of("xxx"),
+                LocalDateTime.now(),
+                LocalDateTime.now());
+    }
+
+    /**
+     * manifest里没有记录的，可能是以前用随机id导入过的，要查出来删掉
+     */
+    private List<String> oldChunkIds(String docId) throws IOException {
+        ImportManifest.DocEntry old = manifest.get(docId);
+        return old != null ? old.chunkIds() : chunkService.findChunkIds(docId);
+    }
+
+    private void write(SplitDoc sd, ChunkBatchWriter writer) throws InterruptedException {
+        String docId = sd.doc().id();
+        sd.cost().submitNanos = System.nanoTime();
+        writer.submit(sd.doc(), sd.chunks(), (doc, ok) ->
+                onWritten(doc, sd.hash(), Chunk.genChunkUuids(docId, sd.chunks()), sd.cost(), sd.oldIds(), ok));
+        journal.submitted(docId);
+    }
+
+    /**
+     * chunk id是确定性的，内容没变的chunk重新写入只是覆盖，所以先写新的再删掉旧的里面已经不存在的
+     */
+    private void onWritten(Doc doc, String hash, List<String> chunkIds, ImportStats.DocCost cost,
+                           List<String> oldIds, boolean ok) {
+        if (!ok) {
+            fail();
+            return;
+        }
+        String docId = doc.id();
+        Set<String> stale = new HashSet<>(oldIds);
+        chunkIds.forEach(stale::remove);
+        if (!chunkService.deleteChunks(stale)) {
+            fail();
+            return;
+        }
+        ImportManifest.DocEntry entry = manifest.newEntry(hash, chunkIds);
+        manifest.put(docId, entry);
+        journal.acked(docId, entry);
+        imported.incrementAndGet();
+        stats.addDone(cost);
+        logger.info("import {} ok, size: {}", docId, chunkIds.size());
+    }
+
+    private void fail() {
+        failed.incrementAndGet();
+        stats.addFailed();
+    }
+
+    ImportStats getStats() {
+        return stats;
+    }
+
+    interface StageHandler<T> {
+        void handle(T item) throws InterruptedException;
+    }
+
+    /**
+     * 一个有界队列加上固定数量的worker，close时放入和worker数量相同的EOF，等worker都退出。
+     * handler抛出异常的文档算失败
+     */
+    class Stage<T> {
+        private static final Object EOF = new Object();
+
+        private final String name;
+        private final BlockingQueue<Object> queue;
+        private final List<Thread> workers;
+        private final Function<T, String> docIdOf;
+
+        Stage(String name, int threads, int capacity, ThreadFactory factory, StageHandler<T> handler,
+              Function<T, String> docIdOf) {
+            this.name = name;
+            this.docIdOf = docIdOf;
+            this.queue = new ArrayBlockingQueue<>(capacity);
+            this.workers = new ArrayList<>(threads);
+            for (int i = 0; i < threads; i++) {
+                Thread t = factory.newThread(() -> work(handler));
+                workers.add(t);
+                t.start();
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private void work(StageHandler<T> handler) {
+            try {
+                while (true) {
+                    Object item = queue.take();
+                    if (item == EOF) {
+                        return;
+                    }
+                    try {
+                        handler.handle((T) item);
+                    } catch (InterruptedException e) {
+                        throw e;
+                    } catch (Exception e) {
+                        logger.error("stage {} handle {} failed", name, docIdOf.apply((T) item), e);
+                        fail();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        int queueSize() {
+            return queue.size();
+        }
+
+        void put(T item) throws InterruptedException {
+            queue.put(item);
+        }
+
+        void close() throws InterruptedException {
+            for (int i = 0; i < workers.size(); i++) {
+                queue.put(EOF);
+            }
+            for (Thread t : workers) {
+                t.join();
+            }
+        }
+    }
+}
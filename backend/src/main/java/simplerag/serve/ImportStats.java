@@ -0,0 +1,171 @@
+package simplerag.serve;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import simplerag.data.Splitter;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * 导入过程的统计：各步骤累计耗时、吞吐，定时打印进度，结束时列出最慢和token最多的文档
+ */
+public class ImportStats {
+
+    private static final Logger logger = LoggerFactory.getLogger(ImportStats.class.getName());
+
+    /**
+     * 一个文档在各步骤上的开销，在各个stage之间传递，每个字段只由一个stage写
+     */
+    public static final class DocCost {
+        final String docId;
+        long bytes;
+        long readNanos;
+        final Splitter.SplitTimes splitTimes = new Splitter.SplitTimes();
+        int tokens;
+        int chunks;
+        long submitNanos;
+        long writeNanos;
+
+        DocCost(String docId) {
+            this.docId = docId;
+        }
+
+        long splitNanos() {
+            return splitTimes.parseNanos + splitTimes.tokenizeNanos + splitTimes.cutNanos + splitTimes.dpNanos;
+        }
+
+        long totalNanos() {
+            return readNanos + splitNanos() + writeNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s bytes=%d segments=%d tokens=%d chunks=%d read=%dms parse=%dms tokenize=%dms cut=%dms dp=%dms write=%dms",
+                    docId, bytes, splitTimes.segments, tokens, chunks,
+                    ms(readNanos), ms(splitTimes.parseNanos), ms(splitTimes.tokenizeNanos),
+                    ms(splitTimes.cutNanos), ms(splitTimes.dpNanos), ms(writeNanos));
+        }
+    }
+
+    private final int topN;
+    private final long startNanos = System.nanoTime();
+
+    private final LongAdder docs = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder segments = new LongAdder();
+    private final LongAdder tokens = new LongAdder();
+    private final LongAdder chunks = new LongAdder();
+    private final LongAdder readNanos = new LongAdder();
+    private final LongAdder parseNanos = new LongAdder();
+    private final LongAdder tokenizeNanos = new LongAdder();
+    private final LongAdder cutNanos = new LongAdder();
+    private final LongAdder dpNanos = new LongAdder();
+    private final LongAdder writeNanos = new LongAdder();
+
+    // 小顶堆，只留最大的topN个
+    private final PriorityQueue<DocCost> slowest = new PriorityQueue<>(Comparator.comparingLong(DocCost::totalNanos));
+    private final PriorityQueue<DocCost> mostTokens = new PriorityQueue<>(Comparator.comparingInt(c -> c.tokens));
+
+    public ImportStats(int topN) {
+        this.topN = topN;
+    }
+
+    public void addRead(DocCost cost) {
+        bytes.add(cost.bytes);
+        readNanos.add(cost.readNanos);
+    }
+
+    public void addSplit(DocCost cost) {
+        Splitter.SplitTimes t = cost.splitTimes;
+        segments.add(t.segments);
+        tokens.add(cost.tokens);
+        chunks.add(cost.chunks);
+        parseNanos.add(t.parseNanos);
+        tokenizeNanos.add(t.tokenizeNanos);
+        cutNanos.add(t.cutNanos);
+        dpNanos.add(t.dpNanos);
+    }
+
+    /**
+     * 文档写入weaviate确认后调用
+     */
+    public void addDone(DocCost cost) {
+        cost.writeNanos = System.nanoTime() - cost.submitNanos;
+        writeNanos.add(cost.writeNanos);
+        docs.increment();
+        synchronized (this) {
+            offer(slowest, cost);
+            offer(mostTokens, cost);
+        }
+    }
+
+    /**
+     * 内容没变跳过的文档，也算处理完了
+     */
+    public void addSkipped() {
+        skipped.increment();
+    }
+
+    public void addFailed() {
+        failed.increment();
+    }
+
+    /**
+     * 导入、跳过和失败的文档数，和total比较就是进度
+     */
+    long finished() {
+        return docs.sum() + skipped.sum() + failed.sum();
+    }
+
+    private void offer(PriorityQueue<DocCost> heap, DocCost cost) {
+        heap.offer(cost);
+        if (heap.size() > topN) {
+            heap.poll();
+        }
+    }
+
+    public void logProgress(int total, Supplier<String> queueDepths) {
+        double seconds = Math.max(1e-3, (System.nanoTime() - startNanos) / 1e9);
+        logger.info("progress {}/{} docs, skipped: {}, failed: {}, {} docs/s, {} tokens/s, queues: {}",
+                finished(), total, skipped.sum(), failed.sum(),
+                String.format("%.1f", docs.sum() / seconds),
+                String.format("%.0f", tokens.sum() / seconds),
+                queueDepths.get());
+    }
+
+    public void logReport() {
+        double seconds = Math.max(1e-3, (System.nanoTime() - startNanos) / 1e9);
+        logger.info("import {} docs in {}s, skipped: {}, failed: {}, {} docs/s, {} tokens/s, bytes={} segments={} tokens={} chunks={}",
+                docs.sum(), String.format("%.1f", seconds), skipped.sum(), failed.sum(),
+                String.format("%.1f", docs.sum() / seconds),
+                String.format("%.0f", tokens.sum() / seconds),
+                bytes.sum(), segments.sum(), tokens.sum(), chunks.sum());
+        // 各步骤是多个线程累加的cpu/等待时间，看相对比例
+        logger.info("stage time read={}ms parse={}ms tokenize={}ms cut={}ms dp={}ms write={}ms",
+                ms(readNanos.sum()), ms(parseNanos.sum()), ms(tokenizeNanos.sum()),
+                ms(cutNanos.sum()), ms(dpNanos.sum()), ms(writeNanos.sum()));
+
+        synchronized (this) {
+            logTop("slowest", slowest, Comparator.comparingLong(DocCost::totalNanos));
+            logTop("most tokens", mostTokens, Comparator.comparingInt(c -> c.tokens));
+        }
+    }
+
+    private static void logTop(String name, PriorityQueue<DocCost> heap, Comparator<DocCost> comparator) {
+        List<DocCost> list = new ArrayList<>(heap);
+        list.sort(comparator.reversed());
+        logger.info("top {} {} docs:", list.size(), name);
+        for (DocCost cost : list) {
+            logger.info("  {}", cost);
+        }
+    }
+
+    private static long ms(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+}
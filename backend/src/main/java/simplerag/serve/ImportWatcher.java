@@ -0,0 +1,303 @@
+package simplerag.serve;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * 监听文档目录（dir/日期/项目/...md）的变化，持续导入。
+ * <p>
+ * 事件先按文档合并到pending里，安静debounceMillis后（或者第一个事件已经等了maxDelayMillis）一起处理，
+ * 一次快照同步产生的成千上万个事件只会触发一次导入，同一个文档只处理一次。
+ * 每个文档处理时重新找它最新的快照，快照里都没有了就是删除。
+ * 事件丢了（OVERFLOW）或者目录被删除时无法知道具体影响了哪些文档，通知全量同步。
+ * <p>
+ * 旧快照不会再改，只监听根目录和最新的快照目录，目录数不随快照个数增长（inotify有max_user_watches限制）；
+ * 根目录下出现更新的快照时切换过去。注册失败时通知全量同步，同步前重新注册；
+ * 一直注册失败（比如根目录不存在）时同步的间隔指数增长，最长MAX_RETRY_MILLIS，相当于退化成定时全量同步。
+ */
+public class ImportWatcher implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(ImportWatcher.class.getName());
+    private static final long MAX_RETRY_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    public interface Listener {
+        void onDocsChanged(Map<String, Importer.DocPath> changed, Set<String> deleted) throws IOException;
+
+        void onResync() throws IOException;
+    }
+
+    private record DocKey(DocResolver.DocRoot root,
+                          String projectDirName,
+                          String relative) {
+    }
+
+    private final List<DocResolver.DocRoot> roots;
+    private final long debounceMillis;
+    private final long maxDelayMillis;
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> watchDirs = new HashMap<>();
+    // root -> 正在监听的最新快照目录
+    private final Map<DocResolver.DocRoot, Path> latestDirs = new HashMap<>();
+
+    private final Set<DocKey> pending = new LinkedHashSet<>();
+    private boolean needResync;
+    private int eventCount;
+    private long firstEventNanos;
+    private long lastEventNanos;
+    // 这次注册有没有失败，连续几次同步前的注册都失败了，失败时下次同步不早于这个时间
+    private boolean registerFailed;
+    private int registerFailures;
+    private long retryNanos;
+
+    public ImportWatcher(List<DocResolver.DocRoot> roots, long debounceMillis, long maxDelayMillis) throws IOException {
+        this.roots = roots;
+        this.debounceMillis = debounceMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.watchService = FileSystems.getDefault().newWatchService();
+        registerAll();
+    }
+
+    /**
+     * 阻塞直到线程被interrupt
+     */
+    public void run(Listener listener) throws InterruptedException {
+        while (!Thread.currentThread().isInterrupted()) {
+            WatchKey key = watchService.poll(debounceMillis, TimeUnit.MILLISECONDS);
+            if (key != null) {
+                handleEvents(key);
+            }
+
+            if (!needResync && pending.isEmpty()) {
+                continue;
+            }
+            long now = System.nanoTime();
+            if (needResync && registerFailures > 0 && now - retryNanos < 0) {
+                continue;
+            }
+            if (now - lastEventNanos < TimeUnit.MILLISECONDS.toNanos(debounceMillis)
+                    && now - firstEventNanos < TimeUnit.MILLISECONDS.toNanos(maxDelayMillis)) {
+                continue;
+            }
+            flush(listener);
+        }
+        throw new InterruptedException();
+    }
+
+    private void handleEvents(WatchKey key) {
+        Path dir = watchDirs.get(key);
+        if (dir == null) {
+            // 已经不再监听的旧快照
+            key.cancel();
+            return;
+        }
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                logger.warn("watch event overflow");
+                markResync();
+                continue;
+            }
+
+            Path child = dir.resolve((Path) event.context());
+            DocResolver.DocRoot root = rootOf(dir);
+            if (root != null) {
+                // 根目录下只关心快照目录的增删
+                if (event.kind() == ENTRY_CREATE && Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                    addSnapshot(root, child);
+                } else if (event.kind() == ENTRY_DELETE) {
+                    markResync();
+                }
+            } else if (event.kind() == ENTRY_CREATE && Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                // 新目录要注册，并且注册之前里面可能已经有文件了
+                registerTree(child, true);
+            } else if (DocResolver.isMarkdown(child.getFileName().toString())) {
+                addPending(child);
+            } else if (event.kind() == ENTRY_DELETE) {
+                // 多半是删掉了整个目录，不知道里面有哪些文档
+                markResync();
+            }
+        }
+        if (!key.reset()) {
+            watchDirs.remove(key);
+        }
+    }
+
+    private DocResolver.DocRoot rootOf(Path dir) {
+        for (DocResolver.DocRoot root : roots) {
+            if (root.dir().equals(dir)) {
+                return root;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 取消所有监听，重新注册根目录和每个根目录下最新的快照
+     */
+    private void registerAll() {
+        for (WatchKey key : watchDirs.keySet()) {
+            key.cancel();
+        }
+        watchDirs.clear();
+        latestDirs.clear();
+        for (DocResolver.DocRoot root : roots) {
+            try {
+                WatchKey key = root.dir().register(watchService, ENTRY_CREATE, ENTRY_DELETE);
+                watchDirs.put(key, root.dir());
+                List<Path> dateDirs = DocResolver.listDateDirs(root);
+                if (!dateDirs.isEmpty()) {
+                    latestDirs.put(root, dateDirs.getFirst());
+                    registerTree(dateDirs.getFirst(), false);
+                }
+            } catch (IOException e) {
+                registerFailed(root.dir(), e);
+            }
+        }
+        logger.info("watch {} dirs", watchDirs.size());
+    }
+
+    private void addSnapshot(DocResolver.DocRoot root, Path dateDir) {
+        Path latest = latestDirs.get(root);
+        if (latest != null && dateDir.getFileName().toString().compareTo(latest.getFileName().toString()) < 0) {
+            // 比当前的还旧，里面可能有最新快照里没有的文档
+            markResync();
+            return;
+        }
+        if (latest != null) {
+            Iterator<Map.Entry<WatchKey, Path>> it = watchDirs.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<WatchKey, Path> e = it.next();
+                if (e.getValue().startsWith(latest)) {
+                    e.getKey().cancel();
+                    it.remove();
+                }
+            }
+        }
+        latestDirs.put(root, dateDir);
+        logger.info("watch new snapshot {}", dateDir);
+        registerTree(dateDir, true);
+    }
+
+    private void registerTree(Path start, boolean addFiles) {
+        try {
+            Files.walkFileTree(start, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    WatchKey key = dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+                    watchDirs.put(key, dir);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (addFiles && DocResolver.isMarkdown(file.getFileName().toString())) {
+                        addPending(file);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            registerFailed(start, e);
+        }
+    }
+
+    private void registerFailed(Path dir, IOException e) {
+        // 一直失败时只打印第一次
+        if (registerFailures == 0) {
+            logger.error("register {} failed", dir, e);
+        } else {
+            logger.debug("register {} failed again: {}", dir, e.toString());
+        }
+        registerFailed = true;
+        markResync();
+    }
+
+    private void addPending(Path file) {
+        for (DocResolver.DocRoot root : roots) {
+            if (!file.startsWith(root.dir())) {
+                continue;
+            }
+            // 日期/项目/...
+            Path relative = root.dir().relativize(file);
+            if (relative.getNameCount() >= 3) {
+                String projectDirName = relative.getName(1).toString();
+                if (root.projectOf(projectDirName) != null) {
+                    pending.add(new DocKey(root, projectDirName, relative.subpath(2, relative.getNameCount()).toString()));
+                    touch();
+                }
+            }
+            return;
+        }
+    }
+
+    private void markResync() {
+        needResync = true;
+        touch();
+    }
+
+    private void touch() {
+        long now = System.nanoTime();
+        if (eventCount == 0) {
+            firstEventNanos = now;
+        }
+        eventCount++;
+        lastEventNanos = now;
+    }
+
+    private void flush(Listener listener) {
+        int events = eventCount;
+        eventCount = 0;
+        try {
+            if (needResync) {
+                needResync = false;
+                pending.clear();
+                // 上次注册可能失败了，或者最新快照被删了
+                registerFailed = false;
+                registerAll();
+                if (registerFailed) {
+                    registerFailures++;
+                    long delay = Math.min(MAX_RETRY_MILLIS, debounceMillis << Math.min(registerFailures, 20));
+                    retryNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+                    if (registerFailures == 1) {
+                        logger.warn("register failed, resync with backoff until it succeeds, first retry in {}ms", delay);
+                    }
+                } else if (registerFailures > 0) {
+                    logger.info("register ok after {} failures", registerFailures);
+                    registerFailures = 0;
+                }
+                listener.onResync();
+                return;
+            }
+
+            Map<String, Importer.DocPath> changed = new LinkedHashMap<>();
+            Set<String> deleted = new LinkedHashSet<>();
+            for (DocKey k : pending) {
+                Importer.DocPath dp = DocResolver.resolveLatest(k.root, k.projectDirName, k.relative);
+                if (dp != null) {
+                    changed.put(dp.docId(), dp);
+                } else {
+                    deleted.add(DocResolver.docIdOf(k.root, k.root.projectOf(k.projectDirName), k.relative));
+                }
+            }
+            logger.info("{} events coalesced to {} changed, {} deleted docs", events, changed.size(), deleted.size());
+            pending.clear();
+            listener.onDocsChanged(changed, deleted);
+        } catch (IOException e) {
+            logger.error("import changed docs failed, resync later", e);
+            pending.clear();
+            markResync();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+}
@@ -1,7 +1,6 @@
 package simplerag.serve;
 
 import io.weaviate.client.Config;
-import io.weaviate.client.WeaviateClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import simplerag.data.Doc;
@@ -16,9 +15,6 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.LocalDateTime;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.stream.Stream;
 
 public class Importer {
 
@@ -29,56 +25,23 @@ public class Importer {
                           Charset encoding,
                           String project,
                           String title,
-                          String url) {
+                          String url,
+                          long size,
+                          long lastModified) {
     }
 
-
-    public static void resolveDir(String dirType, Path dir, Map<String, String> projectMap, Charset encoding,
-                                  Map<String, DocPath> result) throws IOException {
-        List<Path> dateList = new ArrayList<>(16);
-        try (Stream<Path> dirStream = Files.list(dir)) {
-            dirStream.forEach(dateList::add);
-        }
-        dateList.sort(Comparator.comparing(a -> a.getFileName().toString()));
-        for (Path dateDir : dateList) {
-            String date = dateDir.getFileName().toString();
-
-            List<Path> projectList = new ArrayList<>(8);
-            try (Stream<Path> dirStream = Files.list(dateDir)) {
-                dirStream.forEach(projectList::add);
-            }
-            for (Path projectDir : projectList) {
-                String project = projectDir.getFileName().toString();
-                if (projectMap != null) {
-                    String realProject = projectMap.get(project);
-                    if (realProject != null) {
-                        project = realProject;
-                    } else {
-                        continue;
-                    }
-                }
-
-                String realProject = project;
-                String prefix = dirType + "/" + realProject + "/";
-                if (Files.isDirectory(projectDir)) {
-                    try (Stream<Path> stream = Files.walk(projectDir)) {
-                        stream.filter(Files::isRegularFile).forEach(f -> {
-                            String fn = f.getFileName().toString();
-                            if (fn.endsWith(".md") || fn.endsWith(".MD")) {
-                                String title = fn.substring(0, fn.length() - 3);
-                                String relativizeF = projectDir.relativize(f).toString().replace("\\", "/");
-                                String docId = prefix + relativizeF.substring(0, relativizeF.length() - 3);
-                                DocPath old = result.put(docId, new DocPath(docId, f, encoding, realProject, title, ""));
-                                if (old != null) {
-                                    logger.info("updateDoc {} at {}", docId, date);
-                                }
-                            }
-                        });
-                    }
-                }
-            }
-        }
-    }
+    public static final List<DocResolver.DocRoot> DOC_ROOTS = List.of(
+            new DocResolver.DocRoot("conf", Path.of("doc/dify_confluence/dify_confluence"),
+                    Map.of("gmpwrd", "完美横版",
+                            "gmpwrd1", "完美S",
+                            "WL", "武林",
+                            "ZX1", "诛仙",
+                            "ZX2", "诛仙2"),
+                    Charset.forName("GBK")),
+            new DocResolver.DocRoot("svn", Path.of("doc/dify_svn_woa/dify_svn_woa"), null,
+                    StandardCharsets.UTF_8),
+            new DocResolver.DocRoot("woa", Path.of("doc/dify_woa/dify_woa"), null,
+                    StandardCharsets.UTF_8));
 
 
     private static void testOneFile() throws IOException {
@@ -104,63 +67,107 @@ public class Importer {
     }
 
 
-    public static void importFolder(ChunkService chunkService) throws IOException {
-        Map<String, String> idToProject = Map.of(
-                "gmpwrd", "完美横版",
-                "gmpwrd1", "完美S",
-                "WL", "武林",
-                "ZX1", "诛仙",
-                "ZX2", "诛仙2");
-
-        Map<String, DocPath> result = new LinkedHashMap<>();
-        resolveDir("conf", Path.of("doc/dify_confluence/dify_confluence"), idToProject,
-                Charset.forName("GBK"), result);
-        resolveDir("svn", Path.of("doc/dify_svn_woa/dify_svn_woa"), null,
-                StandardCharsets.UTF_8, result);
-        resolveDir("woa", Path.of("doc/dify_woa/dify_woa"), null,
-                StandardCharsets.UTF_8, result);
-        logger.info("start import {} docs", result.size());
-
-        TokenCounter tokenCounter = TokenCounter.getDeepSeekR10528();
+    public static void importFolder(ChunkService chunkService, Path manifestPath, boolean watch) throws IOException {
+        // 切分线程是固定数量的平台线程，每个线程用自己的tokenizer，短文本的token数缓存起来
+        TokenCounter tokenCounter = TokenCounter.getDeepSeekR10528(true, TokenCounter.CacheConf.defaultConf());
         Splitter.SplitterConf splitterConf = new Splitter.SplitterConf(
                 2000, 1200, 750, 1250);
+        ImportManifest manifest = ImportManifest.load(manifestPath, "v" + Splitter.VERSION + " " + splitterConf);
+
+        Path journalPath = manifestPath.resolveSibling(manifestPath.getFileName() + ".journal");
+        try (ImportJournal journal = ImportJournal.open(journalPath)) {
+            // 上次中途挂掉的话，已经写入weaviate的文档从日志恢复到manifest，这次会跳过
+            journal.replay(manifest);
+
+            ImportPipeline pipeline = new ImportPipeline(chunkService, manifest, journal, tokenCounter, splitterConf,
+                    ImportPipeline.PipelineConf.defaultConf());
+            if (!watch) {
+                syncAll(chunkService, manifest, journal, pipeline);
+                return;
+            }
+
+            // 先注册监听再全量同步，同步期间的变化不会漏掉
+            try (ImportWatcher watcher = new ImportWatcher(DOC_ROOTS, 2000, 30000)) {
+                syncAll(chunkService, manifest, journal, pipeline);
+                watcher.run(new ImportWatcher.Listener() {
+                    @Override
+                    public void onDocsChanged(Map<String, DocPath> changed, Set<String> deleted) throws IOException {
+                        ImportPipeline.ImportResult importResult = runPipeline(pipeline, changed.values());
+                        int deletedNum = 0;
+                        for (String docId : deleted) {
+                            if (deleteDoc(chunkService, manifest, journal, docId)) {
+                                deletedNum++;
+                            }
+                        }
+                        manifest.save();
+                        journal.compact();
+                        logger.info("watch import, imported: {}, skipped: {}, failed: {}, deleted: {}",
+                                importResult.imported(), importResult.skipped(), importResult.failed(), deletedNum);
+                    }
 
-        try (ExecutorService executor = Executors.newWorkStealingPool()) {
-            for (DocPath dp : result.values()) {
-                executor.execute(() -> {
-                    String md;
-                    try {
-                        md = Files.readString(dp.path(), dp.encoding());
-                    } catch (IOException e) {
-                        logger.error("read file {} failed", dp.docId(), e);
-                        return;
+                    @Override
+                    public void onResync() throws IOException {
+                        syncAll(chunkService, manifest, journal, pipeline);
                     }
-                    Splitter splitter = new Splitter(tokenCounter, splitterConf);
-                    List<Splitter.SplitterChunk> chunks = splitter.splitMarkdown(md, dp.title);
-                    Doc doc = new Doc(dp.docId, dp.title, md, dp.project, dp.url,
-                            List.of("xxx"),
-                            LocalDateTime.now(),
-                            LocalDateTime.now());
-
-                    chunkService.importChunk(chunks, doc);
                 });
+            } catch (InterruptedException e) {
+                logger.info("watch interrupted");
+            }
+        }
+    }
+
+    private static void syncAll(ChunkService chunkService, ImportManifest manifest, ImportJournal journal,
+                                ImportPipeline pipeline) throws IOException {
+        Map<String, DocPath> result = new DocResolver(false).resolve(DOC_ROOTS);
+        logger.info("start import {} docs", result.size());
+
+        ImportPipeline.ImportResult importResult = runPipeline(pipeline, result.values());
+
+        int deleted = 0;
+        for (String docId : new ArrayList<>(manifest.docIds())) {
+            if (!result.containsKey(docId) && deleteDoc(chunkService, manifest, journal, docId)) {
+                deleted++;
             }
-        } catch (Exception e) {
+        }
+
+        manifest.save();
+        journal.compact();
+        logger.info("import end, imported: {}, skipped: {}, failed: {}, deleted: {}",
+                importResult.imported(), importResult.skipped(), importResult.failed(), deleted);
+    }
+
+    private static ImportPipeline.ImportResult runPipeline(ImportPipeline pipeline, Collection<DocPath> docs) {
+        try {
+            return pipeline.run(docs);
+        } catch (InterruptedException e) {
             throw new RuntimeException(e);
         }
     }
 
-    private static void importFolderUse4B() throws IOException {
-        ChunkService chunkService = new ChunkService(new WeaviateClient(new Config("http", "localhost:8080")),
+    private static boolean deleteDoc(ChunkService chunkService, ImportManifest manifest, ImportJournal journal,
+                                     String docId) {
+        ImportManifest.DocEntry old = manifest.get(docId);
+        if (old == null || !chunkService.deleteChunks(old.chunkIds())) {
+            return false;
+        }
+        manifest.remove(docId);
+        journal.deleted(docId);
+        logger.info("delete {}", docId);
+        return true;
+    }
+
+    private static void importFolderUse4B(boolean watch) throws IOException {
+        ChunkService chunkService = new ChunkService(new Config("http", "localhost:8080"),
                 "Chunk4B",
                 Map.of("apiEndpoint", "http://10.5.9.169:11434",
                         "model", "Qwen3-Embedding-4B"));
 
-        importFolder(chunkService);
+        importFolder(chunkService, Path.of("import_manifest_" + chunkService.getClassName() + ".json"), watch);
         logger.info("end {}", LocalDateTime.now());
     }
 
     public static void main(String[] args) throws IOException {
-        importFolderUse4B();
+        // 带watch参数时导入完不退出，继续监听文档目录的变化
+        importFolderUse4B(args.length > 0 && args[0].equals("watch"));
     }
 }
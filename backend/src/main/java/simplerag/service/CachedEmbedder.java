@@ -0,0 +1,60 @@
+package simplerag.service;
+
+import simplerag.utils.BoundedCache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * query向量的LRU缓存，重复和热门的问题不用再算向量
+ */
+public class CachedEmbedder implements QueryEmbedder {
+
+    private final QueryEmbedder embedder;
+    private final BoundedCache<String, float[]> cache;
+
+    public CachedEmbedder(QueryEmbedder embedder, int maxEntries) {
+        this.embedder = embedder;
+        this.cache = new BoundedCache<>(maxEntries, null);
+    }
+
+    @Override
+    public float[] embed(String text) {
+        float[] vector = cache.get(text);
+        if (vector == null) {
+            vector = embedder.embed(text);
+            cache.put(text, vector);
+        }
+        return vector;
+    }
+
+    /**
+     * 只把没缓存的交给embedder一次算
+     */
+    @Override
+    public List<float[]> embedAll(List<String> texts) {
+        float[][] vectors = new float[texts.size()][];
+        List<Integer> missIndexes = new ArrayList<>();
+        List<String> misses = new ArrayList<>();
+        for (int i = 0; i < texts.size(); i++) {
+            vectors[i] = cache.get(texts.get(i));
+            if (vectors[i] == null) {
+                missIndexes.add(i);
+                misses.add(texts.get(i));
+            }
+        }
+        if (!misses.isEmpty()) {
+            List<float[]> computed = embedder.embedAll(misses);
+            for (int j = 0; j < misses.size(); j++) {
+                vectors[missIndexes.get(j)] = computed.get(j);
+                cache.put(misses.get(j), computed.get(j));
+            }
+        }
+        return Arrays.asList(vectors);
+    }
+
+    public BoundedCache.Stats stats() {
+        return cache.stats();
+    }
+}
@@ -8,7 +8,9 @@ import io.weaviate.client.v1.schema.model.Property;
 import io.weaviate.client.v1.schema.model.Tokenization;
 import io.weaviate.client.v1.schema.model.WeaviateClass;
 import simplerag.data.Doc;
+import simplerag.data.Splitter;
 
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 
@@ -17,11 +19,23 @@ public record Chunk(
         String body,
         Doc doc) {
 
-    public static String genChunkUuid() {
-        UUID uuid = UUID.randomUUID();
+    /**
+     * 由docId和chunk内容确定性生成，重复导入同一内容会得到同一个id（weaviate里是覆盖而不是新增）
+     */
+    public static String genChunkUuid(String docId, String markdown) {
+        UUID uuid = UUID.nameUUIDFromBytes((docId + "\n" + markdown).getBytes(StandardCharsets.UTF_8));
         return uuid.toString();
     }
 
+    public static List<String> genChunkUuids(String docId, List<Splitter.SplitterChunk> chunks) {
+        // 同一文档里完全相同的chunk会得到同一个id，只保留一份
+        Set<String> ids = new LinkedHashSet<>();
+        for (Splitter.SplitterChunk chunk : chunks) {
+            ids.add(genChunkUuid(docId, chunk.markdown()));
+        }
+        return new ArrayList<>(ids);
+    }
+
     public WeaviateObject toWeaviateObject(String className) {
         Map<String, Object> properties = new LinkedHashMap<>();
         properties.put("body", body);
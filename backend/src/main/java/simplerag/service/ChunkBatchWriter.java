@@ -0,0 +1,341 @@
+package simplerag.service;
+
+import io.weaviate.client.WeaviateClient;
+import io.weaviate.client.base.Result;
+import io.weaviate.client.v1.batch.api.ObjectsBatcher;
+import io.weaviate.client.v1.batch.model.ObjectGetResponse;
+import io.weaviate.client.v1.data.model.WeaviateObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import simplerag.data.Doc;
+import simplerag.data.Splitter;
+
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 长期存在的batch写入器：多个文档的chunk混在一起按数量和字节数凑batch，
+ * batch大小按AIMD调整（延迟低于目标就加，出错或超时就减半），失败的object凑成一个batch重试，
+ * 一个文档的所有chunk都写完后回调。大文档可以用{@link #open}边切分边提交，不用把所有chunk都攒在内存里。
+ */
+public class ChunkBatchWriter implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChunkBatchWriter.class.getName());
+
+    public record WriterConf(int minBatch,
+                             int initBatch,
+                             int maxBatch,
+                             int maxBatchBytes,
+                             long targetLatencyMillis,
+                             int flushThreads,
+                             int maxPendingObjects,
+                             int retries) {
+
+        public static WriterConf defaultConf() {
+            return new WriterConf(1, 50, 500, 4 * 1024 * 1024, 5000, 4, 2000, 3);
+        }
+    }
+
+    public interface DocCallback {
+        void onDone(Doc doc, boolean ok);
+    }
+
+    private static final class DocState {
+        private final Doc doc;
+        private final DocCallback callback;
+        private final AtomicInteger remaining;
+        private volatile boolean failed;
+
+        DocState(Doc doc, DocCallback callback, int chunkNum) {
+            this.doc = doc;
+            this.callback = callback;
+            this.remaining = new AtomicInteger(chunkNum);
+        }
+
+        void chunkDone(boolean ok) {
+            if (!ok) {
+                failed = true;
+            }
+            if (remaining.decrementAndGet() == 0) {
+                try {
+                    callback.onDone(doc, !failed);
+                } catch (Exception e) {
+                    logger.error("callback of {} failed", doc.id(), e);
+                }
+            }
+        }
+    }
+
+    private record PendingObject(DocState doc,
+                                 WeaviateObject object,
+                                 int bytes) {
+    }
+
+    /**
+     * 分多次提交的文档；最后调用一次finish或abort，之后等已经提交的chunk都写完再回调
+     */
+    public final class DocStream {
+        private final DocState state;
+
+        private DocStream(DocState state) {
+            this.state = state;
+        }
+
+        /**
+         * 写入队列满时阻塞
+         */
+        public void submit(List<Splitter.SplitterChunk> chunks) throws InterruptedException {
+            Doc doc = state.doc;
+            for (Splitter.SplitterChunk chunk : chunks) {
+                String id = Chunk.genChunkUuid(doc.id(), chunk.markdown());
+                WeaviateObject object = new Chunk(id, chunk.markdown(), doc).toWeaviateObject(className);
+                // 中文utf8是3字节，按最坏情况估算
+                int bytes = chunk.markdown().length() * 3 + 512;
+                // 还没finish，remaining至少是1，不会在这里回调
+                state.remaining.incrementAndGet();
+                try {
+                    queue.put(new PendingObject(state, object, bytes));
+                } catch (InterruptedException e) {
+                    state.remaining.decrementAndGet();
+                    throw e;
+                }
+            }
+        }
+
+        /**
+         * 所有chunk都提交了
+         */
+        public void finish() {
+            state.chunkDone(true);
+        }
+
+        /**
+         * 没提交完就出错了，回调时ok为false
+         */
+        public void abort() {
+            state.chunkDone(false);
+        }
+    }
+
+    private final WeaviateClient client;
+    private final String className;
+    private final WriterConf conf;
+    private final Runnable onWrite;
+    private final BlockingQueue<PendingObject> queue;
+    private final List<Thread> flushers;
+
+    // 多个flusher同时调整，用updateAndGet，不会丢掉别的线程的更新
+    private final AtomicInteger batchSize;
+    private volatile boolean closed;
+
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder objects = new LongAdder();
+    private final LongAdder sendNanos = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+
+    /**
+     * @param onWrite 每次发送batch后调用，失败时也调用（可能部分写入了）
+     */
+    ChunkBatchWriter(WeaviateClient client, String className, WriterConf conf, Runnable onWrite) {
+        this.client = client;
+        this.className = className;
+        this.conf = conf;
+        this.onWrite = onWrite;
+        this.queue = new ArrayBlockingQueue<>(conf.maxPendingObjects);
+        this.batchSize = new AtomicInteger(conf.initBatch);
+        this.flushers = new ArrayList<>(conf.flushThreads);
+        for (int i = 0; i < conf.flushThreads; i++) {
+            flushers.add(Thread.ofVirtual().name("chunk-writer-" + i).start(this::flushLoop));
+        }
+    }
+
+    /**
+     * 写入队列满时阻塞，上游就慢下来了
+     */
+    public void submit(Doc doc, List<Splitter.SplitterChunk> chunks, DocCallback callback) throws InterruptedException {
+        DocStream stream = open(doc, callback);
+        stream.submit(chunks);
+        stream.finish();
+    }
+
+    public DocStream open(Doc doc, DocCallback callback) {
+        // 多出来的1在finish或abort时减掉
+        return new DocStream(new DocState(doc, callback, 1));
+    }
+
+    public int getBatchSize() {
+        return batchSize.get();
+    }
+
+    public int getPendingObjects() {
+        return queue.size();
+    }
+
+    public long getBatches() {
+        return batches.sum();
+    }
+
+    public long getObjects() {
+        return objects.sum();
+    }
+
+    public long getSendNanos() {
+        return sendNanos.sum();
+    }
+
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    private void flushLoop() {
+        try {
+            while (true) {
+                PendingObject first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    if (closed && queue.isEmpty()) {
+                        return;
+                    }
+                    continue;
+                }
+
+                int limit = batchSize.get();
+                List<PendingObject> batch = new ArrayList<>(limit);
+                batch.add(first);
+                int bytes = first.bytes;
+                while (batch.size() < limit && bytes < conf.maxBatchBytes) {
+                    PendingObject o = queue.poll();
+                    if (o == null) {
+                        break;
+                    }
+                    batch.add(o);
+                    bytes += o.bytes;
+                }
+                flush(batch, limit);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @param limit 凑这个batch时的batch size
+     */
+    private void flush(List<PendingObject> batch, int limit) throws InterruptedException {
+        long start = System.nanoTime();
+        Set<String> failedIds = send(batch);
+        long nanos = System.nanoTime() - start;
+        long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        batches.increment();
+        objects.add(batch.size());
+        sendNanos.add(nanos);
+
+        if (failedIds == null || millis > conf.targetLatencyMillis) {
+            int decreased = batchSize.updateAndGet(size -> Math.max(conf.minBatch, size / 2));
+            logger.info("batch of {} took {}ms, ok: {}, decrease batch size to {}",
+                    batch.size(), millis, failedIds != null, decreased);
+        } else if (failedIds.isEmpty() && batch.size() >= limit) {
+            // batch没凑满说明是上游慢，不用加
+            int step = Math.max(1, conf.initBatch / 10);
+            batchSize.updateAndGet(size -> Math.min(conf.maxBatch, size + step));
+        }
+
+        List<PendingObject> failed = new ArrayList<>();
+        for (PendingObject o : batch) {
+            if (failedIds == null || failedIds.contains(o.object.getId())) {
+                failed.add(o);
+            } else {
+                o.doc.chunkDone(true);
+            }
+        }
+        if (!failed.isEmpty()) {
+            retry(failed);
+        }
+    }
+
+    /**
+     * @return 写入失败的object id，整个请求失败时返回null
+     */
+    private Set<String> send(List<PendingObject> batch) {
+        try (ObjectsBatcher batcher = client.batch().objectsBatcher()) {
+            for (PendingObject o : batch) {
+                batcher.withObject(o.object);
+            }
+            Result<ObjectGetResponse[]> result = batcher.run();
+            if (result.hasErrors()) {
+                logger.error("import batch of {} failed: {}", batch.size(), result.getError());
+                return null;
+            }
+
+            Set<String> failedIds = new HashSet<>();
+            ObjectGetResponse[] res = result.getResult();
+            if (res != null) {
+                for (ObjectGetResponse r : res) {
+                    if (r.getResult() != null && r.getResult().getErrors() != null) {
+                        logger.error("import chunk {} failed: {}", r.getId(), r.getResult().getErrors());
+                        failedIds.add(r.getId());
+                    }
+                }
+            }
+            return failedIds;
+        } catch (RuntimeException e) {
+            logger.error("import batch of {} failed", batch.size(), e);
+            return null;
+        } finally {
+            // 写入生效之后再通知，写入期间开始的查询结果才不会被缓存下来
+            onWrite.run();
+        }
+    }
+
+    /**
+     * 失败的object一起重试，每次只重发还没成功的
+     */
+    private void retry(List<PendingObject> failed) throws InterruptedException {
+        for (int i = 0; i < conf.retries && !failed.isEmpty(); i++) {
+            retries.increment();
+            Thread.sleep(200L << i);
+            Set<String> failedIds = send(failed);
+            if (failedIds == null) {
+                continue;
+            }
+            List<PendingObject> remaining = new ArrayList<>();
+            for (PendingObject o : failed) {
+                if (failedIds.contains(o.object.getId())) {
+                    remaining.add(o);
+                } else {
+                    o.doc.chunkDone(true);
+                }
+            }
+            failed = remaining;
+        }
+        for (PendingObject o : failed) {
+            logger.error("import {} chunk {} failed after {} retries", o.doc.doc.id(), o.object.getId(), conf.retries);
+            o.doc.chunkDone(false);
+        }
+    }
+
+    /**
+     * 等队列里的都写完，所有回调都执行过；可以多次调用。
+     * 等待时被中断的话不再等，flusher也停下，中断标记保留
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            for (Thread t : flushers) {
+                t.join();
+            }
+        } catch (InterruptedException e) {
+            for (Thread t : flushers) {
+                t.interrupt();
+            }
+            Thread.currentThread().interrupt();
+        }
+    }
+}
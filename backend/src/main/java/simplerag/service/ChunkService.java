@@ -1,49 +1,119 @@
 package simplerag.service;
 
 import com.google.gson.*;
-import com.google.gson.reflect.TypeToken;
 import io.weaviate.client.Config;
 import io.weaviate.client.WeaviateClient;
 import io.weaviate.client.base.Result;
+import io.weaviate.client.v1.auth.provider.AccessTokenProvider;
 import io.weaviate.client.v1.batch.api.ObjectsBatcher;
+import io.weaviate.client.v1.batch.model.BatchDeleteResponse;
 import io.weaviate.client.v1.batch.model.ObjectGetResponse;
 import io.weaviate.client.v1.experimental.Where;
 import io.weaviate.client.v1.filters.WhereFilter;
-import io.weaviate.client.v1.graphql.model.GraphQLGetBaseObject;
 import io.weaviate.client.v1.graphql.model.GraphQLTypedResponse;
 import io.weaviate.client.v1.graphql.query.Get;
 import io.weaviate.client.v1.graphql.query.argument.HybridArgument;
 import io.weaviate.client.v1.graphql.query.argument.NearTextArgument;
+import io.weaviate.client.v1.graphql.query.argument.NearVectorArgument;
 import io.weaviate.client.v1.graphql.query.argument.WhereArgument;
+import io.weaviate.client.v1.graphql.query.builder.GetBuilder;
 import io.weaviate.client.v1.graphql.query.fields.Field;
+import io.weaviate.client.v1.graphql.query.fields.Fields;
 import io.weaviate.client.v1.schema.model.WeaviateClass;
 import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import simplerag.data.Doc;
 import simplerag.data.Splitter;
+import simplerag.utils.MicroBatcher;
+import simplerag.utils.SingleFlight;
 
-import java.util.List;
-import java.util.Map;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.InetSocketAddress;
+import java.net.ProxySelector;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.function.Supplier;
 
 public class ChunkService {
 
     private static final Logger logger = LoggerFactory.getLogger(ChunkService.class.getName());
     private final WeaviateClient client;
+    private final URI graphqlUri;
+    // 查询直接发graphql，不经过WeaviateClient，header、认证、超时和代理要自己按config设置
+    private final HttpClient http;
+    private final Map<String, String> headers;
+    private final Duration queryTimeout;
+    private final AccessTokenProvider tokenProvider;
     private final String className;
     private final Object ollamaCfg;
+    private final RetrieveCache retrieveCache;
+    private final QueryEmbedder queryEmbedder;
+    // dify并发或重试时同样的查询同时到来，只查一次
+    private final SingleFlight<RetrieveCache.Key, List<RetrieveChunk>> retrieveFlight = new SingleFlight<>();
+    private final MicroBatcher<SearchRequest, List<RetrieveChunk>> searchBatcher;
 
     public ChunkService() {
-        this(new WeaviateClient(new Config("http", "localhost:8080")),
+        this(new Config("http", "localhost:8080"),
                 "Chunk",
                 Map.of("apiEndpoint", "http://host.docker.internal:11434",
                         "model", "dengcao/Qwen3-Embedding-0.6B:F16"));
     }
 
-    public ChunkService(WeaviateClient client, String className, Object ollamaCfg) {
-        this.client = client;
+    public ChunkService(Config config, String className, Object ollamaCfg) {
+        this(config, className, ollamaCfg, RetrieveCache.CacheConf.defaultConf());
+    }
+
+    public ChunkService(Config config, String className, Object ollamaCfg, RetrieveCache.CacheConf cacheConf) {
+        this(config, className, ollamaCfg, cacheConf, null);
+    }
+
+    /**
+     * @param cacheConf     retrieve结果的缓存，null表示不缓存
+     * @param queryEmbedder 自己算query的向量用nearVector查询，null表示用nearText让weaviate调用ollama
+     */
+    public ChunkService(Config config, String className, Object ollamaCfg, RetrieveCache.CacheConf cacheConf,
+                        QueryEmbedder queryEmbedder) {
+        this(config, className, ollamaCfg, cacheConf, queryEmbedder, null);
+    }
+
+    /**
+     * @param batchConf 并发的查询攒批，向量一次算，graphql合成一个请求；null表示每个查询单独发
+     */
+    public ChunkService(Config config, String className, Object ollamaCfg, RetrieveCache.CacheConf cacheConf,
+                        QueryEmbedder queryEmbedder, MicroBatcher.BatchConf batchConf) {
+        this(config, className, ollamaCfg, cacheConf, queryEmbedder, batchConf, null);
+    }
+
+    /**
+     * @param tokenProvider weaviate开了认证时提供token，比如api key就是{@code () -> apiKey}；null表示不认证
+     */
+    public ChunkService(Config config, String className, Object ollamaCfg, RetrieveCache.CacheConf cacheConf,
+                        QueryEmbedder queryEmbedder, MicroBatcher.BatchConf batchConf,
+                        AccessTokenProvider tokenProvider) {
+        this.client = new WeaviateClient(config, tokenProvider);
+        this.graphqlUri = URI.create(config.getBaseURL() + "/graphql");
+        HttpClient.Builder httpBuilder = HttpClient.newBuilder()
+                .connectTimeout(Duration.ofSeconds(config.getConnectionTimeout()));
+        if (config.getProxyHost() != null) {
+            httpBuilder.proxy(ProxySelector.of(new InetSocketAddress(config.getProxyHost(), config.getProxyPort())));
+        }
+        this.http = httpBuilder.build();
+        this.headers = config.getHeaders() != null ? Map.copyOf(config.getHeaders()) : Map.of();
+        this.queryTimeout = Duration.ofSeconds(config.getSocketTimeout());
+        this.tokenProvider = tokenProvider;
         this.className = className;
         this.ollamaCfg = ollamaCfg;
+        this.retrieveCache = cacheConf != null ? new RetrieveCache(cacheConf) : null;
+        this.queryEmbedder = queryEmbedder;
 
         Result<Boolean> chunkClassExistsRes = client.schema().exists().withClassName(className).run();
         if (!chunkClassExistsRes.getResult()) {
@@ -57,22 +127,169 @@ public class ChunkService {
             }
             logger.info("create {} class ok", className);
         }
+        this.searchBatcher = batchConf != null ? new MicroBatcher<>("search-batcher", batchConf, this::searchAll) : null;
     }
 
-    public void importChunk(List<Splitter.SplitterChunk> chunks, Doc doc) {
-        try (ObjectsBatcher batcher = client.batch().objectsBatcher()) {
+    public String getClassName() {
+        return className;
+    }
 
-            for (Splitter.SplitterChunk chunk : chunks) {
-                batcher.withObject(new Chunk(Chunk.genChunkUuid(), chunk.markdown(), doc).
-                        toWeaviateObject(className));
+    public ChunkBatchWriter newBatchWriter(ChunkBatchWriter.WriterConf conf) {
+        return new ChunkBatchWriter(client, className, conf, this::chunksChanged);
+    }
+
+    /**
+     * 写入或删除了chunk，缓存的retrieve结果都失效
+     */
+    private void chunksChanged() {
+        if (retrieveCache != null) {
+            retrieveCache.invalidate();
+        }
+    }
+
+    public QueryEmbedder getQueryEmbedder() {
+        return queryEmbedder;
+    }
+
+    public RetrieveCache.Stats getRetrieveCacheStats() {
+        return retrieveCache != null ? retrieveCache.stats() : null;
+    }
+
+    public SingleFlight.Stats getRetrieveFlightStats() {
+        return retrieveFlight.stats();
+    }
+
+    public MicroBatcher.Stats getSearchBatchStats() {
+        return searchBatcher != null ? searchBatcher.stats() : null;
+    }
+
+    public record DocChunks(Doc doc,
+                            List<Splitter.SplitterChunk> chunks) {
+    }
+
+    public boolean importChunk(List<Splitter.SplitterChunk> chunks, Doc doc) {
+        return importDocs(List.of(new DocChunks(doc, chunks))).isEmpty();
+    }
+
+    /**
+     * 多个文档的chunk放到一个batch里写入
+     *
+     * @return 写入失败的docId
+     */
+    public Set<String> importDocs(List<DocChunks> docs) {
+        Set<String> failed = new HashSet<>();
+        Map<String, String> chunkToDoc = new HashMap<>();
+        try (ObjectsBatcher batcher = client.batch().objectsBatcher()) {
+            for (DocChunks dc : docs) {
+                Doc doc = dc.doc();
+                for (Splitter.SplitterChunk chunk : dc.chunks()) {
+                    String id = Chunk.genChunkUuid(doc.id(), chunk.markdown());
+                    chunkToDoc.put(id, doc.id());
+                    batcher.withObject(new Chunk(id, chunk.markdown(), doc).toWeaviateObject(className));
+                }
             }
             Result<ObjectGetResponse[]> result = batcher.run();
             if (result.hasErrors()) {
-                logger.error("import {} failed: {}", doc.id(), result.getError());
+                logger.error("import {} docs failed: {}", docs.size(), result.getError());
+                for (DocChunks dc : docs) {
+                    failed.add(dc.doc().id());
+                }
+                return failed;
             }
             ObjectGetResponse[] res = result.getResult();
-            if (res != null && res.length > 0) {
-                logger.info("import {} ok, size: {}", doc.id(), res.length);
+            if (res != null) {
+                for (ObjectGetResponse r : res) {
+                    if (r.getResult() != null && r.getResult().getErrors() != null) {
+                        String docId = chunkToDoc.get(r.getId());
+                        logger.error("import {} chunk {} failed: {}", docId, r.getId(), r.getResult().getErrors());
+                        failed.add(docId);
+                    }
+                }
+            }
+            for (DocChunks dc : docs) {
+                if (!failed.contains(dc.doc().id())) {
+                    logger.info("import {} ok, size: {}", dc.doc().id(), dc.chunks().size());
+                }
+            }
+            return failed;
+        } finally {
+            // 写入生效之后再失效缓存，写入期间开始的查询结果才不会被缓存下来
+            chunksChanged();
+        }
+    }
+
+    public boolean deleteChunks(Collection<String> chunkIds) {
+        if (chunkIds.isEmpty()) {
+            return true;
+        }
+        Result<BatchDeleteResponse> run = client.batch().objectsBatchDeleter()
+                .withClassName(className)
+                .withWhere(WhereFilter.builder()
+                        .operator(Where.Operator.CONTAINS_ANY.toString())
+                        .path("id")
+                        .valueText(chunkIds.toArray(new String[0]))
+                        .build())
+                .run();
+        chunksChanged();
+        if (run.hasErrors()) {
+            logger.error("delete {} chunks failed: {}", chunkIds.size(), run.getError());
+            return false;
+        }
+        return true;
+    }
+
+    private static final int FIND_PAGE_SIZE = 1000;
+
+    /**
+     * docId用的是gse分词，Equal过滤是按词匹配的，所以查出来后要再精确比较一次。
+     * weaviate的after游标不能和where一起用，只能按offset分页
+     *
+     * @throws IOException 查询出错，这时不知道有哪些旧chunk
+     */
+    public List<String> findChunkIds(String docId) throws IOException {
+        List<String> ids = new ArrayList<>();
+        for (int offset = 0; ; offset += FIND_PAGE_SIZE) {
+            Get get = client.graphQL().get()
+                    .withClassName(className)
+                    .withFields(Field.builder().name("docId").build(),
+                            Field.builder().name("_additional").fields(new Field[]{
+                                    Field.builder().name("id").build()
+                            }).build())
+                    .withWhere(WhereArgument.builder()
+                            .filter(WhereFilter.builder()
+                                    .operator(Where.Operator.EQUAL.toString())
+                                    .path("docId")
+                                    .valueText(docId)
+                                    .build())
+                            .build())
+                    .withLimit(FIND_PAGE_SIZE)
+                    .withOffset(offset);
+
+            Result<GraphQLTypedResponse<JsonObject>> run = get.run(JsonObject.class);
+            if (run.hasErrors()) {
+                throw new IOException("find chunks of " + docId + " failed: " + run.getError());
+            }
+            if (run.getResult().getErrors() != null && run.getResult().getErrors().length > 0) {
+                throw new IOException("find chunks of " + docId + " failed: "
+                        + run.getResult().getErrors()[0].getMessage());
+            }
+
+            JsonArray chunkArray = null;
+            JsonObject wrapper = run.getResult().getData().getObjects();
+            if (wrapper != null) {
+                chunkArray = wrapper.getAsJsonArray(className);
+            }
+            if (chunkArray == null) {
+                return ids;
+            }
+            for (JsonElement e : chunkArray) {
+                JsonObject obj = e.getAsJsonObject();
+                if (docId.equals(obj.get("docId").getAsString())) {
+                    ids.add(obj.getAsJsonObject("_additional").get("id").getAsString());
+                }
+            }
+            if (chunkArray.size() < FIND_PAGE_SIZE) {
+                return ids;
             }
         }
     }
@@ -93,34 +310,154 @@ public class ChunkService {
             "Instruct: Given a Chinese search query, retrieve relevant passages that answer the question. Query: ";
 
 
+    private static final float ALPHA = 0.75f; // 默认就是0.75，含义是nearText占0.75
+
+    public static final Set<String> ALL_PROPERTIES = Set.of("body", "docId", "docProject", "docTitle", "docUrl");
+
+    /**
+     * limit和autocut放到weaviate的查询里；hybrid的score没法在weaviate里过滤，解析时丢掉低于scoreThreshold的
+     *
+     * @param limit      0表示不限制
+     * @param autocut    0表示不autocut
+     * @param properties 要返回的属性，_additional的id和score总是返回，比如第一阶段只要id和score时传空集合
+     */
+    public record RetrieveOptions(int limit,
+                                  float scoreThreshold,
+                                  int autocut,
+                                  Set<String> properties) {
+
+        public static RetrieveOptions defaultOptions() {
+            return new RetrieveOptions(0, 0, 2, ALL_PROPERTIES);
+        }
+    }
+
     public List<RetrieveChunk> retrieve(@NotNull String query, String projectName) {
-        NearTextArgument nearText = NearTextArgument.builder()
-                .concepts(new String[]{Qwen3EmbeddingQuestionInstruct + query})
-                .build();
+        return retrieve(query, projectName, RetrieveOptions.defaultOptions());
+    }
 
-        HybridArgument.Searches searches = HybridArgument.Searches.builder()
-                .nearText(nearText)
-                .build();
+    public List<RetrieveChunk> retrieve(@NotNull String query, String projectName, RetrieveOptions options) {
+        String normalized = RetrieveCache.normalize(query);
+        RetrieveCache.Key key = new RetrieveCache.Key(normalized, projectName, ALPHA, options);
+        Supplier<List<RetrieveChunk>> search = () -> retrieveFlight.execute(key, () -> searchBatcher != null
+                ? searchBatcher.execute(new SearchRequest(normalized, projectName, options))
+                : search(normalized, projectName, options));
+        List<RetrieveChunk> result = retrieveCache != null ? retrieveCache.get(key, search) : search.get();
+        return result != null ? result : List.of();
+    }
+
+    /**
+     * @return 查询出错时返回null
+     */
+    private List<RetrieveChunk> search(String query, String projectName, RetrieveOptions options) {
+        Float[] vector = queryEmbedder != null ? embed(Qwen3EmbeddingQuestionInstruct + query) : null;
+        String gql = buildGet(query, projectName, options, vector).buildQuery();
+        return postQuery(gql, query, in -> SearchResponseDecoder.decode(in, className, options.scoreThreshold));
+    }
+
+    private record SearchRequest(String query,
+                                 String projectName,
+                                 RetrieveOptions options) {
+    }
+
+    /**
+     * 一批查询的向量一次算，graphql用别名合成一个请求；合并的请求出错时退回到逐个查询
+     *
+     * @return 和requests一一对应，出错的是null
+     */
+    private List<List<RetrieveChunk>> searchAll(List<SearchRequest> requests) {
+        if (requests.size() == 1) {
+            SearchRequest r = requests.getFirst();
+            return Collections.singletonList(search(r.query, r.projectName, r.options));
+        }
+
+        List<Float[]> vectors = null;
+        if (queryEmbedder != null) {
+            List<String> texts = new ArrayList<>(requests.size());
+            for (SearchRequest r : requests) {
+                texts.add(Qwen3EmbeddingQuestionInstruct + r.query);
+            }
+            vectors = embedAll(texts);
+        }
+
+        StringBuilder gql = new StringBuilder("{Get{");
+        List<String> aliases = new ArrayList<>(requests.size());
+        float[] thresholds = new float[requests.size()];
+        for (int i = 0; i < requests.size(); i++) {
+            SearchRequest r = requests.get(i);
+            String one = buildGet(r.query, r.projectName, r.options, vectors != null ? vectors.get(i) : null).buildQuery();
+            String alias = "q" + i;
+            String aliased = aliasGet(one, className, alias);
+            if (aliased == null) {
+                logger.warn("unexpected query format, search one by one: {}", one);
+                return searchEach(requests);
+            }
+            aliases.add(alias);
+            thresholds[i] = r.options.scoreThreshold;
+            gql.append(aliased).append(' ');
+        }
+        gql.append("}}");
+
+        List<List<RetrieveChunk>> result = postQuery(gql.toString(), requests.size() + " batched queries",
+                in -> SearchResponseDecoder.decodeAll(in, aliases, thresholds));
+        return result != null ? result : searchEach(requests);
+    }
+
+    private List<List<RetrieveChunk>> searchEach(List<SearchRequest> requests) {
+        List<List<RetrieveChunk>> result = new ArrayList<>(requests.size());
+        for (SearchRequest r : requests) {
+            result.add(search(r.query, r.projectName, r.options));
+        }
+        return result;
+    }
+
+    /**
+     * GetBuilder不支持别名，buildQuery的格式是{Get{类名(...){...}}}，去掉外层，加上别名
+     *
+     * @return 格式不是这样（比如client升级改了格式）时返回null
+     */
+    static String aliasGet(String query, String className, String alias) {
+        String prefix = "{Get{" + className;
+        if (!query.startsWith(prefix) || query.length() <= prefix.length()
+                || "({".indexOf(query.charAt(prefix.length())) < 0 || !query.endsWith("}}}")) {
+            return null;
+        }
+        return alias + ":" + query.substring("{Get{".length(), query.length() - "}}".length());
+    }
+
+    /**
+     * @param vector null表示用nearText让weaviate向量化
+     */
+    private GetBuilder buildGet(String query, String projectName, RetrieveOptions options, Float[] vector) {
+        HybridArgument.Searches searches;
+        if (vector != null) {
+            searches = HybridArgument.Searches.builder()
+                    .nearVector(NearVectorArgument.builder().vector(vector).build())
+                    .build();
+        } else {
+            NearTextArgument nearText = NearTextArgument.builder()
+                    .concepts(new String[]{Qwen3EmbeddingQuestionInstruct + query})
+                    .build();
+            searches = HybridArgument.Searches.builder()
+                    .nearText(nearText)
+                    .build();
+        }
 
         HybridArgument hybridArgument = HybridArgument.builder()
                 .query(query)
                 .searches(searches)
-                .alpha(0.75f) // 默认就是0.75，含义是nearText占0.75
+                .alpha(ALPHA)
                 .build();
 
-        Get get = client.graphQL().get()
-                .withClassName(className)
-                .withFields(Field.builder().name("body").build(),
-                        Field.builder().name("docId").build(),
-                        Field.builder().name("docProject").build(),
-                        Field.builder().name("docTitle").build(),
-                        Field.builder().name("docUrl").build(),
-                        Field.builder().name("_additional").fields(new Field[]{
-                                Field.builder().name("id").build(),
-                                Field.builder().name("distance").build()
-                        }).build())
-                .withHybrid(hybridArgument)
-                .withAutocut(2);
+        GetBuilder.GetBuilderBuilder get = GetBuilder.builder()
+                .className(className)
+                .fields(searchFields(options.properties))
+                .withHybridFilter(hybridArgument);
+        if (options.limit > 0) {
+            get.limit(options.limit);
+        }
+        if (options.autocut > 0) {
+            get.autocut(options.autocut);
+        }
 
         if (projectName != null) {
             WhereArgument whereArgument = WhereArgument.builder()
@@ -130,44 +467,117 @@ public class ChunkService {
                             .valueText(projectName)
                             .build())
                     .build();
-            get.withWhere(whereArgument);
+            get.withWhereFilter(whereArgument);
         }
+        return get.build();
+    }
 
-        Result<GraphQLTypedResponse<JsonObject>> run = get.run(JsonObject.class);
-        if (run.hasErrors()) {
-            logger.error("query {} failed: {}", query, run.getError());
-        }
-
-        List<RetrieveChunk> result = null;
-        JsonObject wrapper = run.getResult().getData().getObjects();
-        if (wrapper != null) {
-            try {
-                JsonArray chunkArray = wrapper.getAsJsonArray(className);
-                if (chunkArray != null && !chunkArray.isEmpty()) {
-                    Gson gson = new Gson();
-                    TypeToken<List<RetrieveChunk>> token = new TypeToken<>() {
-                    };
-                    result = gson.fromJson(chunkArray, token);
+    private interface ResponseDecoder<T> {
+        T decode(Reader in) throws IOException;
+    }
+
+    /**
+     * 自己发请求，边读边解析，不经过client的JsonObject树
+     *
+     * @param what 出错时日志里用
+     * @return 出错时返回null
+     */
+    private <T> T postQuery(String gql, String what, ResponseDecoder<T> decoder) {
+        JsonObject body = new JsonObject();
+        body.addProperty("query", gql);
+        HttpRequest.Builder builder = HttpRequest.newBuilder(graphqlUri)
+                .timeout(queryTimeout)
+                .header("Content-Type", "application/json");
+        // 和WeaviateClient发的请求一样
+        headers.forEach(builder::setHeader);
+        if (tokenProvider != null) {
+            builder.setHeader("Authorization", "Bearer " + tokenProvider.getAccessToken());
+        }
+        HttpRequest request = builder
+                .POST(HttpRequest.BodyPublishers.ofString(body.toString()))
+                .build();
+        try {
+            HttpResponse<InputStream> response = http.send(request, HttpResponse.BodyHandlers.ofInputStream());
+            try (Reader in = new InputStreamReader(response.body(), StandardCharsets.UTF_8)) {
+                if (response.statusCode() != 200) {
+                    logger.error("query {} failed, status: {}", what, response.statusCode());
+                    return null;
                 }
-            } catch (JsonSyntaxException e) {
-                logger.error("failed to convert JSON to chunks", e);
+                return decoder.decode(in);
             }
+        } catch (IOException | RuntimeException e) {
+            logger.error("query {} failed: {}", what, e.toString());
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
         }
+    }
 
-        if (result != null) {
-            return result;
-        } else {
-            logger.error("query {} result is null", query);
-            return List.of();
+    private static final Field ADDITIONAL_FIELD = Field.builder().name("_additional").fields(new Field[]{
+            Field.builder().name("id").build(),
+            Field.builder().name("score").build()
+    }).build();
+    private static final Fields ALL_FIELDS = searchFields(ALL_PROPERTIES);
+
+    private static Fields searchFields(Set<String> properties) {
+        if (properties == ALL_PROPERTIES && ALL_FIELDS != null) {
+            return ALL_FIELDS;
+        }
+        List<Field> fields = new ArrayList<>(properties.size() + 1);
+        for (String p : properties) {
+            fields.add(Field.builder().name(p).build());
+        }
+        fields.add(ADDITIONAL_FIELD);
+        return Fields.builder().fields(fields.toArray(new Field[0])).build();
+    }
+
+    /**
+     * @return 失败时返回null
+     */
+    private Float[] embed(String text) {
+        try {
+            return boxed(queryEmbedder.embed(text));
+        } catch (RuntimeException e) {
+            logger.warn("embed query failed, fallback to nearText: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @return 失败时返回null，这一批都用nearText
+     */
+    private List<Float[]> embedAll(List<String> texts) {
+        try {
+            List<Float[]> vectors = new ArrayList<>(texts.size());
+            for (float[] v : queryEmbedder.embedAll(texts)) {
+                vectors.add(boxed(v));
+            }
+            return vectors;
+        } catch (RuntimeException e) {
+            logger.warn("embed {} queries failed, fallback to nearText: {}", texts.size(), e.getMessage());
+            return null;
+        }
+    }
+
+    private static Float[] boxed(float[] v) {
+        Float[] vector = new Float[v.length];
+        for (int i = 0; i < v.length; i++) {
+            vector[i] = v[i];
         }
+        return vector;
     }
 
-    public static class RetrieveChunk extends GraphQLGetBaseObject {
-        public String body;
-        public String docId;
-        public String docProject;
-        public String docTitle;
-        public String docUrl;
+    /**
+     * @param score hybrid的分数，越大越相关；没有请求的属性是null
+     */
+    public record RetrieveChunk(String id,
+                                Float score,
+                                String body,
+                                String docId,
+                                String docProject,
+                                String docTitle,
+                                String docUrl) {
     }
 
 }
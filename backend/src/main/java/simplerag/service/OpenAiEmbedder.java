@@ -0,0 +1,101 @@
+package simplerag.service;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * OpenAI兼容的/v1/embeddings接口，ollama也支持
+ */
+public class OpenAiEmbedder implements QueryEmbedder {
+
+    private final HttpClient http = HttpClient.newBuilder()
+            .connectTimeout(Duration.ofSeconds(5))
+            .build();
+    private final Gson gson = new Gson();
+    private final URI uri;
+    private final String model;
+    private final Duration timeout;
+
+    /**
+     * @param apiEndpoint 比如http://localhost:11434
+     */
+    public OpenAiEmbedder(String apiEndpoint, String model, Duration timeout) {
+        this.uri = URI.create(apiEndpoint.replaceAll("/+$", "") + "/v1/embeddings");
+        this.model = model;
+        this.timeout = timeout;
+    }
+
+    @Override
+    public float[] embed(String text) {
+        return toVector(request(text).get(0).getAsJsonObject().getAsJsonArray("embedding"));
+    }
+
+    /**
+     * input传数组，一次请求算完
+     */
+    @Override
+    public List<float[]> embedAll(List<String> texts) {
+        if (texts.isEmpty()) {
+            return List.of();
+        }
+        JsonArray data = request(texts);
+        if (data.size() != texts.size()) {
+            throw new RuntimeException("embed failed, expect " + texts.size() + " embeddings, got " + data.size());
+        }
+        float[][] vectors = new float[texts.size()][];
+        for (int i = 0; i < data.size(); i++) {
+            JsonObject item = data.get(i).getAsJsonObject();
+            // 按index对应，没有index时按顺序
+            int index = item.has("index") ? item.get("index").getAsInt() : i;
+            vectors[index] = toVector(item.getAsJsonArray("embedding"));
+        }
+        return Arrays.asList(vectors);
+    }
+
+    /**
+     * @param input 字符串或字符串列表
+     * @return 返回json里的data
+     */
+    private JsonArray request(Object input) {
+        String body = gson.toJson(Map.of("model", model, "input", input));
+        HttpRequest request = HttpRequest.newBuilder(uri)
+                .timeout(timeout)
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(body))
+                .build();
+        HttpResponse<String> response;
+        try {
+            response = http.send(request, HttpResponse.BodyHandlers.ofString());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("embed interrupted", e);
+        }
+        if (response.statusCode() != 200) {
+            throw new RuntimeException("embed failed, status: " + response.statusCode() + ", body: " + response.body());
+        }
+
+        return gson.fromJson(response.body(), JsonObject.class).getAsJsonArray("data");
+    }
+
+    private static float[] toVector(JsonArray embedding) {
+        float[] vector = new float[embedding.size()];
+        for (int i = 0; i < vector.length; i++) {
+            vector[i] = embedding.get(i).getAsFloat();
+        }
+        return vector;
+    }
+}
@@ -0,0 +1,24 @@
+package simplerag.service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 计算query的向量，要和weaviate里chunk用的是同一个模型。
+ * 失败时抛RuntimeException，调用方退回到让weaviate自己向量化。
+ */
+public interface QueryEmbedder {
+
+    float[] embed(String text);
+
+    /**
+     * 一次算多个，返回的和texts一一对应；默认逐个算，支持批量的实现应该覆盖
+     */
+    default List<float[]> embedAll(List<String> texts) {
+        List<float[]> vectors = new ArrayList<>(texts.size());
+        for (String text : texts) {
+            vectors.add(embed(text));
+        }
+        return vectors;
+    }
+}
@@ -0,0 +1,140 @@
+package simplerag.service;
+
+import simplerag.utils.BoundedCache;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * retrieve结果的缓存，dify会反复用同样的问题查询（推荐问题、重试、多轮对话）。
+ * <p>
+ * 按总字符数淘汰，超过ttl的过期；每次有chunk写入或删除时generation加1，之前的结果全部失效。
+ * 导入在别的进程里时这个进程看不到写入，只能靠ttl。
+ */
+public class RetrieveCache {
+
+    public record CacheConf(long maxChars,
+                            long ttlMillis) {
+
+        public static CacheConf defaultConf() {
+            return new CacheConf(32 * 1024 * 1024, 10 * 60 * 1000);
+        }
+    }
+
+    /**
+     * query已经normalize过
+     */
+    public record Key(String query,
+                      String projectName,
+                      float alpha,
+                      ChunkService.RetrieveOptions options) {
+    }
+
+    /**
+     * cache的hits里包括了过期和失效的stale次数
+     */
+    public record Stats(BoundedCache.Stats cache,
+                        long generation,
+                        long stale,
+                        long savedMillis) {
+
+        public double hitRate() {
+            long total = cache.hits() + cache.misses();
+            return total == 0 ? 0 : (double) (cache.hits() - stale) / total;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s generation=%d stale=%d validHitRate=%.2f savedMillis=%d",
+                    cache, generation, stale, hitRate(), savedMillis);
+        }
+    }
+
+    private record Entry(List<ChunkService.RetrieveChunk> chunks,
+                         long generation,
+                         long createdNanos,
+                         long costNanos) {
+    }
+
+    private final BoundedCache<Key, Entry> cache;
+    private final long ttlNanos;
+    private final AtomicLong generation = new AtomicLong();
+    private final LongAdder stale = new LongAdder();
+    private final LongAdder savedNanos = new LongAdder();
+
+    public RetrieveCache(CacheConf conf) {
+        this.cache = new BoundedCache<>(conf.maxChars, (k, e) -> weightOf(k, e.chunks));
+        this.ttlNanos = conf.ttlMillis * 1_000_000;
+    }
+
+    private static int weightOf(Key key, List<ChunkService.RetrieveChunk> chunks) {
+        int w = key.query.length() + 64;
+        for (ChunkService.RetrieveChunk c : chunks) {
+            w += (c.body() != null ? c.body().length() : 0) + 256;
+        }
+        return w;
+    }
+
+    /**
+     * 空白都合并成一个空格，去掉首尾空白
+     */
+    public static String normalize(String query) {
+        StringBuilder sb = new StringBuilder(query.length());
+        boolean space = false;
+        for (int i = 0; i < query.length(); i++) {
+            char c = query.charAt(i);
+            if (Character.isWhitespace(c)) {
+                space = !sb.isEmpty();
+            } else {
+                if (space) {
+                    sb.append(' ');
+                    space = false;
+                }
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param search 返回null表示查询出错，不缓存
+     */
+    public List<ChunkService.RetrieveChunk> get(Key key, Supplier<List<ChunkService.RetrieveChunk>> search) {
+        long gen = generation.get();
+        long now = System.nanoTime();
+        Entry e = cache.get(key);
+        if (e != null) {
+            if (e.generation == gen && now - e.createdNanos < ttlNanos) {
+                savedNanos.add(e.costNanos);
+                return e.chunks;
+            }
+            stale.increment();
+            cache.remove(key);
+        }
+
+        List<ChunkService.RetrieveChunk> chunks = search.get();
+        if (chunks == null) {
+            return null;
+        }
+        chunks = List.copyOf(chunks);
+        long end = System.nanoTime();
+        // 查询期间有写入的话结果可能是旧的，不缓存
+        if (generation.get() == gen) {
+            cache.put(key, new Entry(chunks, gen, end, end - now));
+        }
+        return chunks;
+    }
+
+    /**
+     * 有chunk写入或删除时调用
+     */
+    public void invalidate() {
+        generation.incrementAndGet();
+    }
+
+    public Stats stats() {
+        return new Stats(cache.stats(), generation.get(), stale.sum(), savedNanos.sum() / 1_000_000);
+    }
+}
@@ -0,0 +1,177 @@
+package simplerag.service;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Serial;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 流式解析graphql Get的返回，直接生成RetrieveChunk，不构造JsonObject树。
+ * 格式：{"data":{"Get":{"类名":[{...,"_additional":{"id":..,"score":".."}}]}},"errors":[...]}
+ */
+final class SearchResponseDecoder {
+
+    static final class GraphQLException extends IOException {
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        GraphQLException(String message) {
+            super(message);
+        }
+    }
+
+    private SearchResponseDecoder() {
+    }
+
+    /**
+     * @param scoreThreshold score低于这个的不返回，没有score的保留
+     * @return 没有这个类的结果时返回空列表
+     * @throws GraphQLException 返回里有errors
+     */
+    static List<ChunkService.RetrieveChunk> decode(Reader in, String className, float scoreThreshold) throws IOException {
+        return decodeAll(in, List.of(className), new float[]{scoreThreshold}).getFirst();
+    }
+
+    /**
+     * 一个请求里有多个Get，用别名区分：{Get{q0:类名(...){...} q1:类名(...){...}}}
+     *
+     * @param names           Get下的名字，类名或别名
+     * @param scoreThresholds 和names一一对应
+     * @return 和names一一对应，没有结果的是空列表
+     * @throws GraphQLException 返回里有errors，其中一个查询出错也算
+     */
+    static List<List<ChunkService.RetrieveChunk>> decodeAll(Reader in, List<String> names, float[] scoreThresholds)
+            throws IOException {
+        List<List<ChunkService.RetrieveChunk>> result = new ArrayList<>(names.size());
+        for (int i = 0; i < names.size(); i++) {
+            result.add(List.of());
+        }
+        String errors = null;
+        JsonReader reader = new JsonReader(in);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "data" -> readData(reader, names, scoreThresholds, result);
+                case "errors" -> errors = readErrors(reader);
+                default -> reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (errors != null) {
+            throw new GraphQLException(errors);
+        }
+        return result;
+    }
+
+    private static void readData(JsonReader reader, List<String> names, float[] scoreThresholds,
+                                 List<List<ChunkService.RetrieveChunk>> result) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return;
+        }
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextName().equals("Get") && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    int i = names.indexOf(reader.nextName());
+                    if (i >= 0 && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                        result.set(i, readChunks(reader, scoreThresholds[i]));
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private static List<ChunkService.RetrieveChunk> readChunks(JsonReader reader, float scoreThreshold) throws IOException {
+        List<ChunkService.RetrieveChunk> result = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            String id = null;
+            Float score = null;
+            String body = null;
+            String docId = null;
+            String docProject = null;
+            String docTitle = null;
+            String docUrl = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "body" -> body = nextString(reader);
+                    case "docId" -> docId = nextString(reader);
+                    case "docProject" -> docProject = nextString(reader);
+                    case "docTitle" -> docTitle = nextString(reader);
+                    case "docUrl" -> docUrl = nextString(reader);
+                    case "_additional" -> {
+                        reader.beginObject();
+                        while (reader.hasNext()) {
+                            switch (reader.nextName()) {
+                                case "id" -> id = nextString(reader);
+                                case "score" -> score = nextFloat(reader);
+                                default -> reader.skipValue();
+                            }
+                        }
+                        reader.endObject();
+                    }
+                    default -> reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if (score == null || score >= scoreThreshold) {
+                result.add(new ChunkService.RetrieveChunk(id, score, body, docId, docProject, docTitle, docUrl));
+            }
+        }
+        reader.endArray();
+        return result;
+    }
+
+    private static String readErrors(JsonReader reader) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (reader.nextName().equals("message")) {
+                    if (!sb.isEmpty()) {
+                        sb.append("; ");
+                    }
+                    sb.append(nextString(reader));
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }
+        reader.endArray();
+        return sb.isEmpty() ? null : sb.toString();
+    }
+
+    private static String nextString(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        return reader.nextString();
+    }
+
+    /**
+     * graphql里hybrid的score是字符串
+     */
+    private static Float nextFloat(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        return (float) reader.nextDouble();
+    }
+}
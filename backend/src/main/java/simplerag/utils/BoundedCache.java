@@ -0,0 +1,159 @@
+package simplerag.utils;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToIntBiFunction;
+
+/**
+ * 有界的LRU缓存，按weight（比如字节数）淘汰。
+ * 分成多个segment，每个segment一把锁，多线程读写时竞争小；淘汰只在segment内部按LRU进行。
+ */
+public class BoundedCache<K, V> {
+
+    public record Stats(long hits,
+                        long misses,
+                        long evictions,
+                        long size,
+                        long weight) {
+
+        public double hitRate() {
+            long total = hits + misses;
+            return total == 0 ? 0 : (double) hits / total;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("hits=%d misses=%d hitRate=%.2f evictions=%d size=%d weight=%d",
+                    hits, misses, hitRate(), evictions, size, weight);
+        }
+    }
+
+    private record Entry<V>(V value, int weight) {
+    }
+
+    private static final class Segment<K, V> {
+        private final LinkedHashMap<K, Entry<V>> map = new LinkedHashMap<>(16, 0.75f, true);
+        private final long maxWeight;
+        private long weight;
+
+        Segment(long maxWeight) {
+            this.maxWeight = maxWeight;
+        }
+
+        synchronized V get(K key) {
+            Entry<V> e = map.get(key);
+            return e != null ? e.value : null;
+        }
+
+        /**
+         * @return 淘汰的个数
+         */
+        synchronized int put(K key, V value, int w) {
+            Entry<V> old = map.put(key, new Entry<>(value, w));
+            if (old != null) {
+                weight -= old.weight;
+            }
+            weight += w;
+            int evicted = 0;
+            Iterator<Entry<V>> it = map.values().iterator();
+            while (weight > maxWeight && it.hasNext()) {
+                Entry<V> eldest = it.next();
+                it.remove();
+                weight -= eldest.weight;
+                evicted++;
+            }
+            return evicted;
+        }
+
+        synchronized V remove(K key) {
+            Entry<V> e = map.remove(key);
+            if (e == null) {
+                return null;
+            }
+            weight -= e.weight;
+            return e.value;
+        }
+
+        synchronized void clear() {
+            map.clear();
+            weight = 0;
+        }
+
+        synchronized int size() {
+            return map.size();
+        }
+
+        synchronized long weight() {
+            return weight;
+        }
+    }
+
+    private final Segment<K, V>[] segments;
+    private final ToIntBiFunction<K, V> weigher;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maxWeight 所有entry的weight之和的上限
+     * @param weigher   entry的weight，null表示每个entry都是1，这时maxWeight就是最大个数
+     */
+    @SuppressWarnings("unchecked")
+    public BoundedCache(long maxWeight, ToIntBiFunction<K, V> weigher) {
+        // 太小的缓存分多了segment，每个segment就放不下几个了
+        int n = 1;
+        while (n < 16 && maxWeight / (n * 2L) >= 64) {
+            n *= 2;
+        }
+        this.segments = (Segment<K, V>[]) new Segment<?, ?>[n];
+        for (int i = 0; i < n; i++) {
+            segments[i] = new Segment<>(maxWeight / n);
+        }
+        this.weigher = weigher;
+    }
+
+    private Segment<K, V> segmentOf(K key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return segments[h & (segments.length - 1)];
+    }
+
+    public V get(K key) {
+        V v = segmentOf(key).get(key);
+        if (v != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return v;
+    }
+
+    public void put(K key, V value) {
+        int w = weigher != null ? weigher.applyAsInt(key, value) : 1;
+        int evicted = segmentOf(key).put(key, value, w);
+        if (evicted > 0) {
+            evictions.add(evicted);
+        }
+    }
+
+    public V remove(K key) {
+        return segmentOf(key).remove(key);
+    }
+
+    public void clear() {
+        for (Segment<K, V> s : segments) {
+            s.clear();
+        }
+    }
+
+    public Stats stats() {
+        long size = 0;
+        long weight = 0;
+        for (Segment<K, V> s : segments) {
+            size += s.size();
+            weight += s.weight();
+        }
+        return new Stats(hits.sum(), misses.sum(), evictions.sum(), size, weight);
+    }
+}
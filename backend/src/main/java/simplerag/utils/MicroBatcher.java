@@ -0,0 +1,169 @@
+package simplerag.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * 把并发的单个请求攒成一批，用一次后端调用处理，再把结果分给各个调用者。
+ * <p>
+ * 攒批是自适应的：没有正在执行的批时说明负载低，取到请求马上处理，不加延迟；
+ * 有批正在执行时才再等最多maxDelayMillis，凑到maxBatch个。每批在自己的虚拟线程里执行，不挡住下一批的收集。
+ */
+public class MicroBatcher<T, R> implements AutoCloseable {
+
+    public record BatchConf(int maxBatch,
+                            long maxDelayMillis) {
+
+        public static BatchConf defaultConf() {
+            return new BatchConf(16, 2);
+        }
+    }
+
+    public record Stats(long batches,
+                        long items,
+                        long maxBatch) {
+
+        public double avgBatch() {
+            return batches == 0 ? 0 : (double) items / batches;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("batches=%d items=%d avgBatch=%.2f maxBatch=%d",
+                    batches, items, avgBatch(), maxBatch);
+        }
+    }
+
+    private record Pending<T, R>(T item,
+                                 CompletableFuture<R> result) {
+    }
+
+    private final BatchConf conf;
+    /**
+     * 返回的列表和传入的一一对应；抛异常时这一批的调用者都收到这个异常
+     */
+    private final Function<List<T>, List<R>> handler;
+    private final LinkedBlockingQueue<Pending<T, R>> queue = new LinkedBlockingQueue<>();
+    private final Thread dispatcher;
+    private final AtomicInteger running = new AtomicInteger();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder items = new LongAdder();
+    private volatile long maxBatch;
+    private volatile boolean closed;
+
+    public MicroBatcher(String name, BatchConf conf, Function<List<T>, List<R>> handler) {
+        if (conf.maxBatch <= 0 || conf.maxDelayMillis < 0) {
+            throw new IllegalArgumentException("invalid batch conf: " + conf);
+        }
+        this.conf = conf;
+        this.handler = handler;
+        this.dispatcher = Thread.ofVirtual().name(name).start(this::dispatchLoop);
+    }
+
+    /**
+     * 阻塞到这一批处理完
+     *
+     * @throws CancellationException 等待时被中断，或者已经close
+     */
+    public R execute(T item) {
+        if (closed) {
+            throw new CancellationException("batcher closed");
+        }
+        Pending<T, R> p = new Pending<>(item, new CompletableFuture<>());
+        queue.add(p);
+        // 检查之后、放入之前close了的话，dispatcher可能已经清理完队列退出了，没人处理它
+        if (closed && queue.remove(p)) {
+            p.result.cancel(false);
+        }
+        return SingleFlight.await(p.result);
+    }
+
+    private void dispatchLoop() {
+        List<Pending<T, R>> rest = new ArrayList<>();
+        while (!closed) {
+            List<Pending<T, R>> batch = new ArrayList<>();
+            try {
+                collect(batch);
+            } catch (InterruptedException e) {
+                // close，凑了一半的也要取消
+                rest.addAll(batch);
+                break;
+            }
+            running.incrementAndGet();
+            Thread.ofVirtual().start(() -> {
+                try {
+                    run(batch);
+                } finally {
+                    running.decrementAndGet();
+                }
+            });
+        }
+        queue.drainTo(rest);
+        for (Pending<T, R> p : rest) {
+            p.result.cancel(false);
+        }
+    }
+
+    private void collect(List<Pending<T, R>> batch) throws InterruptedException {
+        batch.add(queue.take());
+        queue.drainTo(batch, conf.maxBatch - 1);
+        if (running.get() > 0 && batch.size() < conf.maxBatch) {
+            // 后端正忙，再等一会儿凑满
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(conf.maxDelayMillis);
+            while (batch.size() < conf.maxBatch) {
+                Pending<T, R> p = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (p == null) {
+                    break;
+                }
+                batch.add(p);
+                queue.drainTo(batch, conf.maxBatch - batch.size());
+            }
+        }
+    }
+
+    private void run(List<Pending<T, R>> batch) {
+        batches.increment();
+        items.add(batch.size());
+        if (batch.size() > maxBatch) {
+            maxBatch = batch.size();
+        }
+
+        List<T> in = new ArrayList<>(batch.size());
+        for (Pending<T, R> p : batch) {
+            in.add(p.item);
+        }
+        try {
+            List<R> out = handler.apply(in);
+            if (out.size() != batch.size()) {
+                throw new IllegalStateException("batch result size " + out.size() + " != " + batch.size());
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).result.complete(out.get(i));
+            }
+        } catch (RuntimeException | Error e) {
+            for (Pending<T, R> p : batch) {
+                p.result.completeExceptionally(e);
+            }
+        }
+    }
+
+    public Stats stats() {
+        return new Stats(batches.sum(), items.sum(), maxBatch);
+    }
+
+    /**
+     * 还没开始处理的请求（包括和close并发提交的）收到CancellationException
+     */
+    @Override
+    public void close() {
+        closed = true;
+        dispatcher.interrupt();
+    }
+}
@@ -0,0 +1,88 @@
+package simplerag.utils;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * 同一个key同时只执行一次。
+ * 第一个调用者（leader）在自己的线程里执行，同时到来的相同key的调用者（follower）等它的结果，
+ * leader抛异常时follower收到同样的异常；执行完就从表里移除，不缓存结果。
+ */
+public class SingleFlight<K, V> {
+
+    /**
+     * collapsed是没有自己执行、直接用了leader结果的次数
+     */
+    public record Stats(long executions,
+                        long collapsed,
+                        long failures,
+                        long inFlight) {
+
+        @Override
+        public String toString() {
+            return String.format("executions=%d collapsed=%d failures=%d inFlight=%d",
+                    executions, collapsed, failures, inFlight);
+        }
+    }
+
+    private final ConcurrentHashMap<K, CompletableFuture<V>> calls = new ConcurrentHashMap<>();
+    private final LongAdder executions = new LongAdder();
+    private final LongAdder collapsed = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    /**
+     * @throws CancellationException follower等待时被中断，中断标记会保留；leader照常执行，其他follower不受影响
+     */
+    public V execute(K key, Supplier<V> work) {
+        CompletableFuture<V> call = new CompletableFuture<>();
+        CompletableFuture<V> running = calls.putIfAbsent(key, call);
+        if (running != null) {
+            collapsed.increment();
+            return await(running);
+        }
+
+        executions.increment();
+        try {
+            V v = work.get();
+            call.complete(v);
+            return v;
+        } catch (RuntimeException | Error e) {
+            failures.increment();
+            call.completeExceptionally(e);
+            throw e;
+        } finally {
+            calls.remove(key, call);
+        }
+    }
+
+    /**
+     * 等结果，中断时抛CancellationException并保留中断标记，异常原样抛出
+     */
+    static <V> V await(CompletableFuture<V> running) {
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            CancellationException ce = new CancellationException("interrupted while waiting for in-flight call");
+            ce.initCause(e);
+            throw ce;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException re) {
+                throw re;
+            }
+            if (cause instanceof Error err) {
+                throw err;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    public Stats stats() {
+        return new Stats(executions.sum(), collapsed.sum(), failures.sum(), calls.size());
+    }
+}
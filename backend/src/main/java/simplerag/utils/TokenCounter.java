@@ -1,30 +1,314 @@
 package simplerag.utils;
 
 import ai.djl.huggingface.tokenizers.HuggingFaceTokenizer;
+import ai.djl.huggingface.tokenizers.jni.CharSpan;
+import ai.djl.huggingface.tokenizers.jni.TokenizersLibrary;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
 
+/**
+ * 只关心token数量，直接调用native的encode拿token id的个数，
+ * 不像{@link HuggingFaceTokenizer#encode(String)}那样构造token字符串、offset、mask等。
+ * <p>
+ * perThread为true时每个线程用自己的tokenizer实例，适合固定数量的切分线程，不要在虚拟线程里用；
+ * 线程结束前调用{@link #releaseThread()}把实例还回来，给之后的线程复用，否则每批新线程都会加载新的实例。
+ * <p>
+ * 文档里重复的短文本很多（模板标题、表格行、快照和分支之间相同的行），可以配置缓存，
+ * 只有批量计算里长度不超过maxTextLength的文本才走缓存，key是文本的sha256前128位。
+ * <p>
+ * 优先从本地的tokenizer.json加载（见{@link TokenizerLoader}），本地没有才访问hub。
+ */
 public class TokenCounter implements AutoCloseable {
 
+    private static final Logger logger = LoggerFactory.getLogger(TokenCounter.class.getName());
+
+    public record CacheConf(long maxEntries,
+                            int maxTextLength) {
+
+        public static CacheConf defaultConf() {
+            return new CacheConf(1_000_000, 512);
+        }
+    }
+
+    /**
+     * @param count token数，包括special token
+     * @param ends  每个非special token在文本里的结束位置（utf16下标，不减），没要求时为null
+     */
+    public record Tokens(int count,
+                         int[] ends) {
+    }
+
+    private record TextKey(long hi,
+                           long lo) {
+    }
+
+    private static final ThreadLocal<MessageDigest> sha256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    });
+
     public static TokenCounter getDeepSeekR10528() {
+        return getDeepSeekR10528(false, null);
+    }
+
+    public static TokenCounter getDeepSeekR10528(boolean perThread, CacheConf cacheConf) {
         return new TokenCounter("deepseek-ai/DeepSeek-R1-0528",
                 Map.of("modelMaxLength", "128000",
-                        "maxLength", "100000"));
+                        "maxLength", "100000"),
+                perThread, cacheConf);
     }
 
+    private final String modelName;
+    private volatile Path tokenizerFile;
+    private final Map<String, String> options;
+    private final boolean addSpecialTokens;
     private final HuggingFaceTokenizer tokenizer;
+    private final ThreadLocal<HuggingFaceTokenizer> threadTokenizers;
+    private final List<HuggingFaceTokenizer> allTokenizers = new CopyOnWriteArrayList<>();
+    // 线程还回来的实例
+    private final ConcurrentLinkedDeque<HuggingFaceTokenizer> idleTokenizers = new ConcurrentLinkedDeque<>();
+    private final CacheConf cacheConf;
+    private final BoundedCache<TextKey, Integer> cache;
 
     public TokenCounter(String modelName, Map<String, String> options) {
-        tokenizer = HuggingFaceTokenizer.newInstance(modelName, options);
+        this(modelName, options, false, null);
+    }
+
+    /**
+     * @param cacheConf null表示不缓存
+     */
+    public TokenCounter(String modelName, Map<String, String> options, boolean perThread, CacheConf cacheConf) {
+        this(modelName, TokenizerLoader.findLocal(modelName), options, perThread, cacheConf);
+    }
+
+    /**
+     * 直接用本地的tokenizer.json，不访问hub
+     */
+    public TokenCounter(Path tokenizerFile, Map<String, String> options, boolean perThread, CacheConf cacheConf) {
+        this(tokenizerFile.toString(), tokenizerFile, options, perThread, cacheConf);
+    }
+
+    private TokenCounter(String modelName, Path tokenizerFile, Map<String, String> options, boolean perThread,
+                         CacheConf cacheConf) {
+        this.modelName = modelName;
+        this.tokenizerFile = tokenizerFile;
+        // 默认padding是longest，批量encode时短文本会被补齐，数量就不对了
+        Map<String, String> opts = new HashMap<>(options);
+        opts.putIfAbsent("padding", "false");
+        // 只传maxLength时默认会截断，超过maxLength的文本数量和位置都不对
+        opts.putIfAbsent("truncation", "false");
+        this.options = opts;
+        // 和HuggingFaceTokenizer的默认值一致
+        this.addSpecialTokens = Boolean.parseBoolean(options.getOrDefault("addSpecialTokens", "true"));
+        this.tokenizer = newTokenizer();
+        this.threadTokenizers = perThread ? new ThreadLocal<>() : null;
+        this.cacheConf = cacheConf;
+        this.cache = cacheConf != null ? new BoundedCache<>(cacheConf.maxEntries, null) : null;
+    }
+
+    private HuggingFaceTokenizer newTokenizer() {
+        long start = System.nanoTime();
+        Path file = tokenizerFile;
+        HuggingFaceTokenizer t;
+        if (file != null) {
+            try {
+                t = HuggingFaceTokenizer.newInstance(file, options);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        } else {
+            t = HuggingFaceTokenizer.newInstance(modelName, options);
+            // 下次（包括perThread时其他线程）从本地加载
+            tokenizerFile = TokenizerLoader.copyFromHubCache(modelName);
+        }
+        allTokenizers.add(t);
+        logger.info("load tokenizer {} from {} in {}ms", modelName, file != null ? file : "hub",
+                (System.nanoTime() - start) / 1_000_000);
+        return t;
+    }
+
+    private long handle() {
+        if (threadTokenizers == null) {
+            return tokenizer.getHandle();
+        }
+        HuggingFaceTokenizer t = threadTokenizers.get();
+        if (t == null) {
+            t = idleTokenizers.poll();
+            if (t == null) {
+                t = newTokenizer();
+            }
+            threadTokenizers.set(t);
+        }
+        return t.getHandle();
+    }
+
+    /**
+     * perThread时，当前线程不再使用，把它的tokenizer还回来给其他线程用
+     */
+    public void releaseThread() {
+        if (threadTokenizers == null) {
+            return;
+        }
+        HuggingFaceTokenizer t = threadTokenizers.get();
+        if (t != null) {
+            threadTokenizers.remove();
+            idleTokenizers.push(t);
+        }
+    }
+
+    /**
+     * 加载过的tokenizer实例数
+     */
+    public int getTokenizerCount() {
+        return allTokenizers.size();
     }
 
     public int countTokens(String text) {
-        return tokenizer.encode(text).getTokens().length;
+        long encoding = TokenizersLibrary.LIB.encode(handle(), text, addSpecialTokens);
+        try {
+            return TokenizersLibrary.LIB.getTokenIds(encoding).length;
+        } finally {
+            TokenizersLibrary.LIB.deleteEncoding(encoding);
+        }
+    }
+
+    /**
+     * 一次native调用算多个文本，tokenizer内部会并行encode
+     */
+    public int[] countTokens(List<String> texts) {
+        Tokens[] tokens = tokenize(texts, Integer.MAX_VALUE);
+        int[] result = new int[tokens.length];
+        for (int i = 0; i < tokens.length; i++) {
+            result[i] = tokens[i].count;
+        }
+        return result;
+    }
+
+    /**
+     * 和countTokens一样批量计算，token数超过endsOver的文本同时返回每个token的结束位置，
+     * 这样切分大段落时不用再tokenize一遍
+     */
+    public Tokens[] tokenize(List<String> texts, int endsOver) {
+        if (cache == null) {
+            return batchTokenize(texts, endsOver);
+        }
+
+        Tokens[] result = new Tokens[texts.size()];
+        TextKey[] keys = new TextKey[texts.size()];
+        List<String> missTexts = new ArrayList<>();
+        List<Integer> missIndexes = new ArrayList<>();
+        for (int i = 0; i < texts.size(); i++) {
+            String text = texts.get(i);
+            if (text.length() <= cacheConf.maxTextLength) {
+                keys[i] = keyOf(text);
+                Integer cached = cache.get(keys[i]);
+                // 缓存里只有数量，要位置的还得重新算
+                if (cached != null && cached <= endsOver) {
+                    result[i] = new Tokens(cached, null);
+                    continue;
+                }
+            }
+            missTexts.add(text);
+            missIndexes.add(i);
+        }
+
+        Tokens[] missTokens = batchTokenize(missTexts, endsOver);
+        for (int j = 0; j < missTokens.length; j++) {
+            int i = missIndexes.get(j);
+            result[i] = missTokens[j];
+            if (keys[i] != null) {
+                cache.put(keys[i], missTokens[j].count);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return 没配置缓存时返回null
+     */
+    public BoundedCache.Stats getCacheStats() {
+        return cache != null ? cache.stats() : null;
+    }
+
+    private static TextKey keyOf(String text) {
+        byte[] digest = sha256.get().digest(text.getBytes(StandardCharsets.UTF_8));
+        ByteBuffer buf = ByteBuffer.wrap(digest);
+        return new TextKey(buf.getLong(), buf.getLong());
+    }
+
+    private Tokens[] batchTokenize(List<String> texts, int endsOver) {
+        Tokens[] result = new Tokens[texts.size()];
+        if (texts.isEmpty()) {
+            return result;
+        }
+        long[] encodings = TokenizersLibrary.LIB.batchEncode(handle(), texts.toArray(new String[0]), addSpecialTokens);
+        try {
+            for (int i = 0; i < encodings.length; i++) {
+                int count = TokenizersLibrary.LIB.getTokenIds(encodings[i]).length;
+                int[] ends = null;
+                if (count > endsOver) {
+                    ends = toCharEnds(texts.get(i), TokenizersLibrary.LIB.getTokenCharSpans(encodings[i]));
+                }
+                result[i] = new Tokens(count, ends);
+            }
+        } finally {
+            for (long encoding : encodings) {
+                TokenizersLibrary.LIB.deleteEncoding(encoding);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * native返回的位置是按unicode字符（code point）算的，转成java的utf16下标；special token的span是null，跳过
+     */
+    private static int[] toCharEnds(String text, CharSpan[] spans) {
+        int[] ends = new int[spans.length];
+        int n = 0;
+        int cp = 0;
+        int idx = 0;
+        for (CharSpan span : spans) {
+            if (span == null) {
+                continue;
+            }
+            int end = span.getEnd();
+            if (end < cp) {
+                cp = 0;
+                idx = 0;
+            }
+            while (cp < end && idx < text.length()) {
+                idx += Character.charCount(text.codePointAt(idx));
+                cp++;
+            }
+            // 一个字符被拆成多个byte级token时，这几个token的结束位置相同
+            ends[n++] = idx;
+        }
+        return Arrays.copyOf(ends, n);
     }
 
     @Override
     public void close() {
-        tokenizer.close();
+        for (HuggingFaceTokenizer t : allTokenizers) {
+            t.close();
+        }
     }
 
 }
@@ -0,0 +1,115 @@
+package simplerag.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.*;
+import java.util.Comparator;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+/**
+ * 找本地的tokenizer.json，不联网。
+ * <p>
+ * 顺序：缓存目录（系统属性simplerag.tokenizer.cache，默认~/.cache/simplerag/tokenizers/模型名/tokenizer.json），
+ * classpath里的tokenizers/模型名/tokenizer.json（复制到缓存目录），
+ * huggingface的缓存（之前联网加载过，复制到缓存目录）。
+ * 离线机器上把tokenizer.json放到缓存目录或者打包进classpath就行。
+ */
+public final class TokenizerLoader {
+
+    private static final Logger logger = LoggerFactory.getLogger(TokenizerLoader.class.getName());
+
+    private static final String FILE_NAME = "tokenizer.json";
+
+    private TokenizerLoader() {
+    }
+
+    public static Path cacheFile(String modelName) {
+        String dir = System.getProperty("simplerag.tokenizer.cache");
+        Path cacheDir = dir != null ? Path.of(dir) : Path.of(System.getProperty("user.home"), ".cache", "simplerag", "tokenizers");
+        return cacheDir.resolve(modelName).resolve(FILE_NAME);
+    }
+
+    /**
+     * @return 都没有时返回null，这时只能通过hub加载
+     */
+    public static Path findLocal(String modelName) {
+        Path cached = cacheFile(modelName);
+        if (Files.isRegularFile(cached)) {
+            return cached;
+        }
+
+        String resource = "tokenizers/" + modelName + "/" + FILE_NAME;
+        try (InputStream in = TokenizerLoader.class.getClassLoader().getResourceAsStream(resource)) {
+            if (in != null) {
+                save(in, cached);
+                logger.info("copy tokenizer {} from classpath to {}", modelName, cached);
+                return cached;
+            }
+        } catch (IOException e) {
+            logger.warn("copy tokenizer {} from classpath failed", modelName, e);
+        }
+
+        return copyFromHubCache(modelName);
+    }
+
+    /**
+     * 从hub加载后调用，把huggingface缓存里的文件复制过来，下次启动就不用再访问hub
+     */
+    public static Path copyFromHubCache(String modelName) {
+        Optional<Path> hubFile = findInHubCache(modelName);
+        if (hubFile.isEmpty()) {
+            return null;
+        }
+        Path cached = cacheFile(modelName);
+        try (InputStream in = Files.newInputStream(hubFile.get())) {
+            save(in, cached);
+            logger.info("copy tokenizer {} from {} to {}", modelName, hubFile.get(), cached);
+            return cached;
+        } catch (IOException e) {
+            logger.warn("copy tokenizer {} from {} failed", modelName, hubFile.get(), e);
+            return hubFile.get();
+        }
+    }
+
+    private static Optional<Path> findInHubCache(String modelName) {
+        String hubCache = System.getenv("HF_HUB_CACHE");
+        Path hub;
+        if (hubCache != null) {
+            hub = Path.of(hubCache);
+        } else {
+            String hfHome = System.getenv("HF_HOME");
+            hub = hfHome != null ? Path.of(hfHome, "hub") : Path.of(System.getProperty("user.home"), ".cache", "huggingface", "hub");
+        }
+        Path snapshots = hub.resolve("models--" + modelName.replace("/", "--")).resolve("snapshots");
+        if (!Files.isDirectory(snapshots)) {
+            return Optional.empty();
+        }
+        try (Stream<Path> dirs = Files.list(snapshots)) {
+            return dirs.map(d -> d.resolve(FILE_NAME))
+                    .filter(Files::isRegularFile)
+                    .max(Comparator.comparingLong(TokenizerLoader::lastModified));
+        } catch (IOException e) {
+            logger.warn("list {} failed", snapshots, e);
+            return Optional.empty();
+        }
+    }
+
+    private static long lastModified(Path p) {
+        try {
+            return Files.getLastModifiedTime(p).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static void save(InputStream in, Path file) throws IOException {
+        Files.createDirectories(file.getParent());
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.copy(in, tmp, StandardCopyOption.REPLACE_EXISTING);
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,56 @@
+package simplerag.data;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ImageExtractorTest {
+
+    @Test
+    void extractTree(@TempDir Path tmp) throws IOException {
+        byte[] small = {1, 2, 3, 4, 5};
+        byte[] large = new byte[3 * 1024 * 1024 + 1]; // 超过内存上限，走临时文件
+        new Random(1).nextBytes(large);
+        String smallImg = "![a](data:image/png;base64," + Base64.getEncoder().encodeToString(small) + ")";
+        String largeImg = "![b](data:image/jpeg;base64," + Base64.getMimeEncoder().encodeToString(large) + ")";
+
+        Path docs = tmp.resolve("docs");
+        Files.createDirectories(docs.resolve("a"));
+        Files.writeString(docs.resolve("a/1.md"), "x" + smallImg + "y\n" + largeImg + "\n");
+        Files.writeString(docs.resolve("2.md"), smallImg + smallImg);
+
+        ImageStore store = new ImageStore(tmp.resolve("img"));
+        ImageExtractor extractor = new ImageExtractor(store);
+        assertEquals(4, extractor.extractTree(docs, 2));
+
+        ImageStore.Stats stats = store.stats();
+        assertEquals(2, stats.stored());
+        assertEquals(2, stats.duplicates());
+        assertEquals(small.length + large.length, stats.bytesWritten());
+
+        List<ImageExtractor.ImageInfo> infos = new ArrayList<>();
+        extractor.extractAllImages(smallImg + largeImg, infos);
+        assertEquals(List.of("png", "jpeg"), infos.stream().map(ImageExtractor.ImageInfo::type).toList());
+        assertArrayEquals(small, Files.readAllBytes(store.pathOf(infos.get(0).id(), "png")));
+        assertArrayEquals(large, Files.readAllBytes(store.pathOf(infos.get(1).id(), "jpeg")));
+        assertEquals(4, store.stats().duplicates());
+
+        // 重新打开时从目录恢复索引，不再写
+        ImageStore reopened = new ImageStore(tmp.resolve("img"));
+        assertTrue(reopened.contains(infos.get(1).id(), "jpeg"));
+        new ImageExtractor(reopened).extractImages(docs.resolve("2.md"));
+        assertEquals(0, reopened.stats().stored());
+        try (var files = Files.list(tmp.resolve("img"))) {
+            assertTrue(files.noneMatch(p -> p.toString().endsWith(".tmp")));
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package simplerag.data;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ImageScannerTest {
+
+    private static final String IMG = "![a](data:image/png;base64,iVBORw0KGgo=)";
+
+    @Test
+    void strip() {
+        assertEquals("中国", ImageScanner.strip("中" + IMG + "国"));
+        assertEquals("a  b", ImageScanner.strip("a " + IMG + " b"));
+        // 同一行两张图片，中间的文字保留
+        assertEquals("1  2  3", ImageScanner.strip("1 " + IMG + " 2 " + IMG + " 3"));
+        // 不是图片的不动
+        assertEquals("![a](b.png) ![c]\n(data:image/png) !x ![", ImageScanner.strip("![a](b.png) ![c]\n(data:image/png) !x !["));
+        assertEquals("x![y", ImageScanner.strip("x![y](DATA:IMAGE/svg+xml;utf8,<svg/>)![y"));
+        // 没有)的，base64到不是base64的字符为止，其他的到换行为止，后面的文本保留
+        assertEquals("x", ImageScanner.strip("x![y](data:image/png;base64,AAAA"));
+        assertEquals("x\n# 标题\n正文", ImageScanner.strip("x![y](data:image/png;base64,AAAA\n# 标题\n正文"));
+        assertEquals("x\nab cd", ImageScanner.strip("x![y](data:image/png;base64,AAAA\nab cd"));
+        // 折行的base64
+        assertEquals("xz", ImageScanner.strip("x![y](data:image/png;base64,AAAA\r\nBBBB\nCC==)z"));
+        assertEquals("x 后面", ImageScanner.strip("x![y](data:image/png;base64,AA== 后面"));
+        assertEquals("x\n后面", ImageScanner.strip("x![y](data:image/svg+xml;utf8,<svg>\n后面"));
+        assertEquals("x\n后面", ImageScanner.strip("x![y](data:image/png\n后面"));
+    }
+
+    @Test
+    void strippingReader() throws IOException {
+        String md = "t1 " + IMG + "\n![b](data:image/jpeg;base64," + "A".repeat(200_000) + ")t2\n![c](data:image/png;base64,AAAA\nt3";
+        StringBuilder sb = new StringBuilder();
+        try (Reader reader = ImageScanner.stripping(new StringReader(md))) {
+            char[] buf = new char[3];
+            int n;
+            while ((n = reader.read(buf)) >= 0) {
+                sb.append(buf, 0, n);
+            }
+        }
+        assertEquals(ImageScanner.strip(md), sb.toString());
+        assertEquals("t1 \nt2\n\nt3", sb.toString());
+    }
+
+    @Test
+    void sameAsRegexForSingleImageLines() {
+        Pattern old = Pattern.compile("!\\[.*]\\(data:image/[^)]+\\)");
+        List<String> lines = List.of(
+                "中" + IMG + "国",
+                "![C:\\Users\\a.png](data:image/png;base64...)国",
+                "![C:][]](data:image/png;base64...)国",
+                "!![x](data:image/jpeg;base64,AAAA)!",
+                "![x] ![y](data:image/gif;base64,R0lG)z");
+        for (String line : lines) {
+            assertEquals(old.matcher(line).replaceAll(""), ImageScanner.strip(line), line);
+        }
+    }
+
+    @Test
+    void extract() throws IOException {
+        String md = "t1 " + IMG + "\n![b](data:image/jpeg;base64,/9j/" + "A".repeat(100_000) + ")t2\n![c](data:image/svg+xml;utf8,<svg/>)"
+                + "\n![d](data:image/png;base64,AAAA\nt3";
+        List<String> events = new ArrayList<>();
+        StringBuilder text = new StringBuilder();
+        StringBuilder data = new StringBuilder();
+        ImageScanner.Listener listener = new ImageScanner.Listener() {
+            @Override
+            public void text(CharSequence s, int start, int end) {
+                text.append(s, start, end);
+            }
+
+            @Override
+            public void imageStart(String type, boolean base64) {
+                events.add(type + ":" + base64);
+            }
+
+            @Override
+            public void imageData(CharSequence s, int start, int end) {
+                data.append(s, start, end);
+            }
+
+            @Override
+            public void imageEnd(boolean closed) {
+                events.add(data.length() + ":" + closed);
+                data.setLength(0);
+            }
+        };
+
+        // 分块读入和一次给完结果一样
+        for (int chunk : new int[]{1, 3, 7, md.length()}) {
+            events.clear();
+            text.setLength(0);
+            ImageScanner scanner = new ImageScanner(listener);
+            for (int i = 0; i < md.length(); i += chunk) {
+                scanner.feed(md, i, Math.min(md.length(), i + chunk));
+            }
+            scanner.finish();
+            assertEquals(List.of("png:true", "12:true", "jpeg:true", "100004:true", "svg+xml:false", "0:true",
+                    "png:true", "4:false"), events);
+            assertEquals("t1 \nt2\n\n\nt3", text.toString());
+        }
+
+        events.clear();
+        text.setLength(0);
+        ImageScanner.scan(new StringReader(md), listener);
+        assertEquals(8, events.size());
+        assertEquals("t1 \nt2\n\n\nt3", text.toString());
+    }
+}
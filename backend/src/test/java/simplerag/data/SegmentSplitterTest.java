@@ -1,7 +1,16 @@
 package simplerag.data;
 
+import org.commonmark.node.Document;
+import org.commonmark.node.Heading;
+import org.commonmark.node.Node;
+import org.commonmark.parser.Parser;
+import org.commonmark.renderer.markdown.MarkdownRenderer;
 import org.junit.jupiter.api.Test;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
 import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -47,6 +56,58 @@ class SegmentSplitterTest {
         assertEquals("请在build.gradle中添加依赖。", result.get(5).getBody().trim());
     }
 
+    /**
+     * 按source span截取的body和原来把节点render出来的一样
+     */
+    @Test
+    void bodySameAsRendered() {
+        String md = SegmentSplitter.removeImageForMarkItDownBug(markdown);
+        Node document = Parser.builder().build().parse(md);
+        SegmentSplitter.removeLink(document);
+        List<String> rendered = new ArrayList<>();
+        Document body = new Document();
+        for (Node node = document.getFirstChild(); node != null; ) {
+            Node next = node.getNext();
+            if (node instanceof Heading) {
+                rendered.add(MarkdownRenderer.builder().build().render(body));
+                body = new Document();
+            } else {
+                body.appendChild(node);
+            }
+            node = next;
+        }
+        rendered.add(MarkdownRenderer.builder().build().render(body));
+
+        List<Segment> result = new SegmentSplitter().removeLinkAndSplitByHeadings(markdown, "title");
+        assertEquals(rendered, result.stream().map(Segment::getBody).toList());
+    }
+
+    @Test
+    void splitByHeadings() throws IOException {
+        String md = markdown + """
+
+                ```
+                # 不是标题
+                ```
+                第一行
+                ===
+                正文![a](data:image/png;base64,AAAA
+                BBBB==)后面
+                """;
+        SegmentSplitter splitter = new SegmentSplitter();
+        List<Segment> expected = splitter.removeLinkAndSplitByHeadings(md, "title");
+        List<Segment> result = new ArrayList<>();
+        splitter.splitByHeadings(new BufferedReader(new StringReader(md)), "title", result::addAll);
+
+        assertEquals(expected.size(), result.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getHeader(), result.get(i).getHeader());
+            assertEquals(expected.get(i).getLevel(), result.get(i).getLevel());
+            assertEquals(expected.get(i).getBody(), result.get(i).getBody());
+        }
+        assertEquals("第一行", result.getLast().getHeader());
+    }
+
     @Test
     void removeImageForMarkItDownBug() {
 
@@ -3,7 +3,16 @@ package simplerag.data;
 import org.junit.jupiter.api.Test;
 import simplerag.utils.TokenCounter;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.URISyntaxException;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -83,6 +92,101 @@ class SplitterTest {
         assertEquals(result, Splitter.SplitterChunk.dump(chunks));
     }
 
+    @Test
+    void splitMarkdown_cutLongLine() throws URISyntaxException {
+        // 每个字符一个token
+        Path tokenizer = Path.of(getClass().getResource("/tokenizers/test/char/tokenizer.json").toURI());
+        try (TokenCounter counter = new TokenCounter(tokenizer, Map.of(), false, null)) {
+            Splitter splitter = new Splitter(counter, new Splitter.SplitterConf(
+                    40, 20, 20, 30));
+
+            String line = "x".repeat(100);
+            List<Splitter.SplitterChunk> chunks = splitter.splitMarkdown("# T\nabc\n\n" + line + "\n", "title");
+            StringBuilder all = new StringBuilder();
+            for (Splitter.SplitterChunk chunk : chunks) {
+                assertTrue(chunk.token() <= 30, chunk.toString());
+                all.append(chunk.markdown().replace("# T\n", ""));
+            }
+            assertEquals("abc" + line, all.toString());
+        }
+    }
+
+    @Test
+    void splitMarkdown_cutLineOverMaxLength() throws URISyntaxException {
+        // 行的token数超过tokenizer的maxLength，数量和位置不能被截断
+        Path tokenizer = Path.of(getClass().getResource("/tokenizers/test/char/tokenizer.json").toURI());
+        try (TokenCounter counter = new TokenCounter(tokenizer, Map.of("maxLength", "10"), false, null)) {
+            Splitter splitter = new Splitter(counter, new Splitter.SplitterConf(
+                    8, 5, 5, 8));
+
+            String line = "y".repeat(60);
+            List<Splitter.SplitterChunk> chunks = splitter.splitMarkdown(line + "\n", "title");
+            StringBuilder all = new StringBuilder();
+            for (Splitter.SplitterChunk chunk : chunks) {
+                // chunk.token()里还有标题的token，切的时候要留出来
+                assertTrue(chunk.token() <= 8, chunk.toString());
+                all.append(chunk.markdown());
+            }
+            assertEquals(line, all.toString());
+        }
+    }
+
+    @Test
+    void splitMarkdown_stream() throws URISyntaxException, IOException {
+        Path tokenizer = Path.of(getClass().getResource("/tokenizers/test/char/tokenizer.json").toURI());
+        try (TokenCounter counter = new TokenCounter(tokenizer, Map.of(), false, null)) {
+            Splitter splitter = new Splitter(counter, new Splitter.SplitterConf(
+                    80, 20, 20, 30));
+
+            // 小文档在一个窗口内，和整篇切分一样
+            String small = SegmentSplitterTest.markdown;
+            List<Splitter.SplitterChunk> chunks = new ArrayList<>();
+            splitter.splitMarkdown(new BufferedReader(new StringReader(small)), "commonmark", chunks::add);
+            assertEquals(Splitter.SplitterChunk.dump(splitter.splitMarkdown(small, "commonmark")),
+                    Splitter.SplitterChunk.dump(chunks));
+
+            // 大文档分多个窗口输出，内容不丢
+            StringBuilder large = new StringBuilder();
+            for (int i = 0; i < 200; i++) {
+                large.append("## h").append(i).append("\nbody ").append(i).append("\n\n");
+            }
+            chunks.clear();
+            splitter.splitMarkdown(new BufferedReader(new StringReader(large.toString())), "t", chunks::add);
+            String all = String.join("", chunks.stream().map(Splitter.SplitterChunk::markdown).toList());
+            for (int i = 0; i < 200; i++) {
+                assertTrue(all.contains("## h" + i + "\nbody " + i + "\n"), "h" + i);
+            }
+            assertTrue(chunks.size() > 50);
+        }
+    }
+
+    @Test
+    void splitMarkdown_parallel() throws URISyntaxException {
+        Path tokenizer = Path.of(getClass().getResource("/tokenizers/test/char/tokenizer.json").toURI());
+        try (TokenCounter counter = new TokenCounter(tokenizer, Map.of(), false, null)) {
+            Splitter.SplitterConf conf = new Splitter.SplitterConf(800, 300, 300, 500);
+            Splitter sequential = new Splitter(counter, conf);
+            Splitter parallel = new Splitter(counter, conf, ForkJoinPool.commonPool());
+
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; sb.length() < Splitter.PARALLEL_MIN_LENGTH * 2; i++) {
+                sb.append("# 第").append(i).append("章\n").append(SegmentSplitterTest.markdown).append("\n")
+                        .append("- 列表").append(i).append("\n  # 列表里的标题\n- [链接](http://a.b)\n")
+                        .append("```\n# 代码里的注释\n```\n")
+                        .append("setext标题").append(i).append("\n---\n")
+                        .append("第一行\r\n# crlf标题\r\n").append("长段落".repeat(i % 500)).append("\n\n");
+            }
+            String md = sb.toString();
+            assertTrue(SegmentSplitter.splitSections(md, Splitter.SECTION_MIN_LENGTH).size() > 4);
+            assertEquals(Splitter.SplitterChunk.dump(sequential.splitMarkdown(md, "t")),
+                    Splitter.SplitterChunk.dump(parallel.splitMarkdown(md, "t")));
+
+            // 有链接引用定义时不分section
+            String withDefinition = md + "[a]: http://a.b\n";
+            assertEquals(1, SegmentSplitter.splitSections(withDefinition, Splitter.SECTION_MIN_LENGTH).size());
+        }
+    }
+
     @Test
     void findBestSplit() {
         int[] tokens = new int[]{100, 100, 200, 200};
@@ -104,4 +208,89 @@ class SplitterTest {
         }
 
     }
-}
\ No newline at end of file
+
+    @Test
+    void findBestSplit_sameAsQuadratic() {
+        Random random = new Random(42);
+        for (int round = 0; round < 200; round++) {
+            int n = 1 + random.nextInt(300);
+            int[] tokens = new int[n];
+            int[] levels = new int[n];
+            for (int i = 0; i < n; i++) {
+                tokens[i] = random.nextInt(10) == 0 ? random.nextInt(2000) : random.nextInt(200);
+                levels[i] = random.nextInt(5);
+            }
+            assertArrayEquals(findBestSplitQuadratic(tokens, levels, 750, 1250),
+                    Splitter.findBestSplit(tokens, levels, 750, 1250));
+        }
+
+        // 大量小标题的文档，比如changelog，剪枝最多的情况
+        for (int round = 0; round < 10; round++) {
+            int n = 200 + random.nextInt(400);
+            int[] tokens = new int[n];
+            int[] levels = new int[n];
+            for (int i = 0; i < n; i++) {
+                tokens[i] = 5 + random.nextInt(60);
+                levels[i] = 2 + random.nextInt(2);
+            }
+            assertArrayEquals(findBestSplitQuadratic(tokens, levels, 750, 1250),
+                    Splitter.findBestSplit(tokens, levels, 750, 1250));
+        }
+    }
+
+    /**
+     * 原来的O(n^2)实现，加上了limitMax的限制，用来对比结果
+     */
+    private static int[] findBestSplitQuadratic(int[] tokens, int[] levels, int limitMin, int limitMax) {
+        int bestNum = (limitMin + limitMax) / 2;
+        int numSpace = (limitMax - limitMin) / 2;
+        if (numSpace == 0) {
+            numSpace = limitMin / 2;
+        }
+
+        int n = tokens.length;
+        int[][] dp = new int[n][];
+        double[] dpScore = new double[n];
+
+        for (int i = n - 1; i >= 0; i--) {
+            double minScore = Double.MAX_VALUE;
+            int[] bestSplit = null;
+            int level = levels[i];
+            double levelScore = 2 * Math.pow(level - 1, 2);
+            if (level == 0) {
+                levelScore = 0;
+            }
+
+            double currentSum = 0;
+            for (int j = i; j < n; j++) {
+                currentSum += tokens[j];
+                if (j > i && currentSum > limitMax) {
+                    break;
+                }
+                double diff = Math.abs(currentSum - bestNum) / numSpace;
+                double deviationScore = (diff <= 1) ? 0.5 * diff * diff : diff * diff;
+
+                if (j == n - 1) {
+                    double totalScore = deviationScore + levelScore;
+                    if (totalScore < minScore) {
+                        minScore = totalScore;
+                        bestSplit = new int[]{};
+                    }
+                } else if (dp[j + 1] != null) {
+                    double totalScore = dpScore[j + 1] + deviationScore + levelScore + 0.1 * dp[j + 1].length;
+                    if (totalScore < minScore) {
+                        minScore = totalScore;
+
+                        int[] d = dp[j + 1];
+                        bestSplit = new int[d.length + 1];
+                        bestSplit[0] = j + 1;
+                        System.arraycopy(d, 0, bestSplit, 1, d.length);
+                    }
+                }
+            }
+            dp[i] = bestSplit;
+            dpScore[i] = minScore;
+        }
+        return dp[0];
+    }
+}
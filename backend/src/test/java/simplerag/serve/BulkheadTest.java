@@ -0,0 +1,49 @@
+package simplerag.serve;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BulkheadTest {
+
+    @Test
+    void shedWhenQueueFullOrTimeout() throws Exception {
+        Bulkhead bulkhead = new Bulkhead(new Bulkhead.BulkheadConf(1, 1, 200));
+        assertTrue(bulkhead.tryAcquire());
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            // 第一个排队，等到release
+            CountDownLatch started = new CountDownLatch(1);
+            Future<Boolean> waiting = executor.submit(() -> {
+                started.countDown();
+                return bulkhead.tryAcquire();
+            });
+            started.await();
+            while (bulkhead.stats().queued() == 0) {
+                Thread.onSpinWait();
+            }
+            // 队列满了，直接拒绝
+            assertFalse(bulkhead.tryAcquire());
+
+            bulkhead.release();
+            assertTrue(waiting.get());
+            assertEquals(1, bulkhead.stats().inFlight());
+
+            // 排队超时
+            assertFalse(executor.submit(bulkhead::tryAcquire).get());
+            bulkhead.release();
+        }
+
+        Bulkhead.Stats stats = bulkhead.stats();
+        assertEquals(0, stats.inFlight());
+        assertEquals(0, stats.queued());
+        assertEquals(2, stats.admitted());
+        assertEquals(1, stats.rejected());
+        assertEquals(1, stats.timedOut());
+    }
+}
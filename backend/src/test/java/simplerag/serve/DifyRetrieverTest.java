@@ -0,0 +1,32 @@
+package simplerag.serve;
+
+import com.alibaba.fastjson2.JSON;
+import com.alibaba.fastjson2.JSONObject;
+import org.junit.jupiter.api.Test;
+import simplerag.service.ChunkService;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DifyRetrieverTest {
+
+    @Test
+    void writeResponse() {
+        List<ChunkService.RetrieveChunk> chunks = List.of(
+                new ChunkService.RetrieveChunk("id1", 0.25f, "坐骑\n\"系统\"", "d1", "诛仙", "t1", "u1"),
+                new ChunkService.RetrieveChunk("id2", null, "b2", "d2", "p2", "t2", "u2"));
+        String json = new String(DifyRetriever.writeResponse(chunks), StandardCharsets.UTF_8);
+
+        // 和原来生成RetrieveRecord再序列化的结果一样
+        List<DifyRetriever.RetrieveRecord> records = chunks.stream().map(c -> new DifyRetriever.RetrieveRecord(
+                c.body(), c.score() != null ? c.score() : 0f, c.docTitle(),
+                new JSONObject(Map.of("docId", c.docId(), "docProject", c.docProject(), "docUrl", c.docUrl()))
+        )).toList();
+        assertEquals(JSON.parseObject(JSON.toJSONString(new DifyRetriever.RetrieveResponse(records))), JSON.parseObject(json));
+
+        assertEquals("{\"records\":[]}", new String(DifyRetriever.writeResponse(List.of()), StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,44 @@
+package simplerag.serve;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DocResolverTest {
+
+    private static void write(Path f, String content) throws IOException {
+        Files.createDirectories(f.getParent());
+        Files.writeString(f, content);
+    }
+
+    @Test
+    void resolve(@TempDir Path dir) throws IOException {
+        write(dir.resolve("2025-05-01/ZX1/a/design.md"), "old");
+        write(dir.resolve("2025-05-01/ZX1/only_old.md"), "old");
+        write(dir.resolve("2025-05-01/other/skip.md"), "old");
+        write(dir.resolve("2025-05-02/ZX1/a/design.md"), "new");
+        write(dir.resolve("2025-05-02/ZX1/readme.txt"), "new");
+
+        DocResolver.DocRoot root = new DocResolver.DocRoot("conf", dir, Map.of("ZX1", "诛仙"), StandardCharsets.UTF_8);
+        for (boolean compareStat : new boolean[]{false, true}) {
+            Map<String, Importer.DocPath> result = new DocResolver(compareStat).resolve(List.of(root));
+            assertEquals(2, result.size());
+
+            Importer.DocPath dp = result.get("conf/诛仙/a/design");
+            assertEquals(dir.resolve("2025-05-02/ZX1/a/design.md"), dp.path());
+            assertEquals("design", dp.title());
+            assertEquals("诛仙", dp.project());
+            assertEquals(3, dp.size());
+
+            assertTrue(result.containsKey("conf/诛仙/only_old"));
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package simplerag.serve;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ImportJournalTest {
+
+    @Test
+    void replay(@TempDir Path dir) throws IOException {
+        Path path = dir.resolve("journal");
+        try (ImportJournal journal = ImportJournal.open(path)) {
+            journal.split("svn/a");
+            journal.submitted("svn/a");
+            journal.acked("svn/a", new ImportManifest.DocEntry("h1", List.of("id1"), "v1"));
+            journal.split("svn/b");
+            journal.deleted("svn/c");
+        }
+        // 模拟挂掉时写了半行
+        Files.writeString(path, "{\"stage\":\"ACK", StandardOpenOption.APPEND);
+
+        ImportManifest manifest = ImportManifest.load(dir.resolve("manifest.json"), "v1");
+        manifest.put("svn/c", manifest.newEntry("h3", List.of("id3")));
+        try (ImportJournal journal = ImportJournal.open(path)) {
+            assertEquals(1, journal.replay(manifest));
+            assertTrue(manifest.isUpToDate("svn/a", "h1"));
+            assertNull(manifest.get("svn/b"));
+            assertNull(manifest.get("svn/c"));
+
+            journal.compact();
+        }
+        assertEquals(0, Files.size(path));
+    }
+}
@@ -0,0 +1,59 @@
+package simplerag.serve;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ImportManifestTest {
+
+    @Test
+    void saveAndLoad(@TempDir Path dir) throws IOException {
+        Path path = dir.resolve("manifest.json");
+        String hash = ImportManifest.hash("# a".getBytes(StandardCharsets.UTF_8));
+        {
+            ImportManifest manifest = ImportManifest.load(path, "v1");
+            assertFalse(manifest.isUpToDate("svn/a", hash));
+            manifest.put("svn/a", manifest.newEntry(hash, List.of("id1", "id2")));
+            manifest.save();
+        }
+
+        {
+            ImportManifest manifest = ImportManifest.load(path, "v1");
+            assertTrue(manifest.isUpToDate("svn/a", hash));
+            assertFalse(manifest.isUpToDate("svn/a", "other"));
+            assertEquals(List.of("id1", "id2"), manifest.get("svn/a").chunkIds());
+        }
+
+        {
+            // 切分配置变了，只导入成功了一部分
+            ImportManifest manifest = ImportManifest.load(path, "v2");
+            assertFalse(manifest.isUpToDate("svn/a", hash));
+            assertEquals(List.of("id1", "id2"), manifest.get("svn/a").chunkIds());
+            manifest.put("svn/b", manifest.newEntry(hash, List.of("id3")));
+            manifest.save();
+        }
+
+        {
+            // 没导入成功的下次还要重新导入
+            ImportManifest manifest = ImportManifest.load(path, "v2");
+            assertFalse(manifest.isUpToDate("svn/a", hash));
+            assertTrue(manifest.isUpToDate("svn/b", hash));
+        }
+    }
+
+    @Test
+    void loadOldFormat(@TempDir Path dir) throws IOException {
+        Path path = dir.resolve("manifest.json");
+        Files.writeString(path, """
+                {"splitterVersion":"v1","docs":{"svn/a":{"hash":"h1","chunkIds":["id1"]}}}""");
+        assertTrue(ImportManifest.load(path, "v1").isUpToDate("svn/a", "h1"));
+        assertFalse(ImportManifest.load(path, "v2").isUpToDate("svn/a", "h1"));
+    }
+}
@@ -0,0 +1,111 @@
+package simplerag.serve;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import simplerag.data.Splitter;
+import simplerag.service.ChunkBatchWriter;
+import simplerag.service.ChunkService;
+import simplerag.service.FakeWeaviate;
+import simplerag.utils.TokenCounter;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ImportPipelineTest {
+
+    private static Importer.DocPath write(Path dir, String name, String content) throws IOException {
+        Path f = dir.resolve(name + ".md");
+        Files.writeString(f, content);
+        return new Importer.DocPath("test/" + name, f, StandardCharsets.UTF_8, "p", name, "",
+                Files.size(f), Files.getLastModifiedTime(f).toMillis());
+    }
+
+    @Test
+    void importSkipAndUpdate(@TempDir Path dir) throws Exception {
+        Path tokenizer = Path.of(getClass().getResource("/tokenizers/test/char/tokenizer.json").toURI());
+        ImportPipeline.PipelineConf conf = new ImportPipeline.PipelineConf(2, 2, 2, 4, 200,
+                new ChunkBatchWriter.WriterConf(1, 4, 8, 1024 * 1024, 5000, 2, 16, 0));
+        try (FakeWeaviate fake = new FakeWeaviate("Chunk");
+             TokenCounter counter = new TokenCounter(tokenizer, Map.of(), true, null);
+             ImportJournal journal = ImportJournal.open(dir.resolve("journal"))) {
+            ChunkService chunkService = new ChunkService(fake.config(), "Chunk", Map.of(), null, null);
+            ImportManifest manifest = ImportManifest.load(dir.resolve("manifest.json"), "test");
+            ImportPipeline pipeline = new ImportPipeline(chunkService, manifest, journal, counter,
+                    new Splitter.SplitterConf(80, 20, 20, 30), conf);
+
+            List<Importer.DocPath> docs = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                docs.add(write(dir, "doc" + i, "# 标题" + i + "\n正文" + i + "\n\n## 小节\n" + "内容".repeat(i * 5) + "\n"));
+            }
+            // 超过streamThresholdBytes，流式切分，chunk数超过一次提交的数量
+            StringBuilder large = new StringBuilder();
+            for (int i = 0; i < 100; i++) {
+                large.append("## 段落").append(i).append("\n").append("很长的内容".repeat(10)).append(i).append("\n\n");
+            }
+            docs.add(write(dir, "large", large.toString()));
+
+            ImportPipeline.ImportResult result = pipeline.run(docs);
+            assertEquals(new ImportPipeline.ImportResult(11, 0, 0), result);
+            assertEquals(11, pipeline.getStats().finished());
+            int chunkNum = fake.getObjects().size();
+            assertTrue(chunkNum > 11, "chunks: " + chunkNum);
+            assertTrue(manifest.get("test/large").chunkIds().size() > 64);
+            for (Importer.DocPath dp : docs) {
+                assertTrue(manifest.isUpToDate(dp.docId(), ImportManifest.hash(dp.path())), dp.docId());
+            }
+
+            // 内容没变都跳过，进度也能到total
+            result = pipeline.run(docs);
+            assertEquals(new ImportPipeline.ImportResult(0, 11, 0), result);
+            assertEquals(11, pipeline.getStats().finished());
+            assertEquals(chunkNum, fake.getObjects().size());
+
+            // 改了的文档重新导入，旧的chunk删掉
+            List<String> oldIds = manifest.get("test/doc9").chunkIds();
+            docs.set(9, write(dir, "doc9", "# 新标题\n新正文\n"));
+            result = pipeline.run(docs);
+            assertEquals(new ImportPipeline.ImportResult(1, 10, 0), result);
+            List<String> newIds = manifest.get("test/doc9").chunkIds();
+            assertEquals(1, newIds.size());
+            assertTrue(fake.getObjects().containsKey(newIds.getFirst()));
+            for (String id : oldIds) {
+                assertFalse(fake.getObjects().containsKey(id));
+            }
+
+            // 写入失败的不进manifest，下次还会重试
+            fake.setBatchHandler(ids -> null);
+            docs.set(0, write(dir, "doc0", "# 改了\n"));
+            result = pipeline.run(docs);
+            assertEquals(new ImportPipeline.ImportResult(0, 10, 1), result);
+            assertEquals(11, pipeline.getStats().finished());
+            assertFalse(manifest.isUpToDate("test/doc0", ImportManifest.hash(docs.get(0).path())));
+
+            fake.setBatchHandler(ids -> Set.of());
+            assertEquals(new ImportPipeline.ImportResult(1, 10, 0), pipeline.run(docs));
+
+            // 查不到旧chunk的不导入，算失败
+            fake.setGraphqlError("fake graphql failure");
+            docs.add(write(dir, "new", "# 新文档\n"));
+            assertEquals(new ImportPipeline.ImportResult(0, 11, 1), pipeline.run(docs));
+            assertEquals(12, pipeline.getStats().finished());
+            assertNull(manifest.get("test/new"));
+
+            // 处理时抛异常的也算失败，进度能到total
+            fake.setGraphqlError(null);
+            docs.add(new Importer.DocPath("test/broken", null, StandardCharsets.UTF_8, "p", "broken", "", 0, 0));
+            assertEquals(new ImportPipeline.ImportResult(1, 11, 1), pipeline.run(docs));
+            assertEquals(13, pipeline.getStats().finished());
+
+            // 多次run复用切分线程还回来的tokenizer，共享的1个加上每个切分线程1个
+            assertTrue(counter.getTokenizerCount() <= 1 + conf.splitThreads(), "tokenizers: " + counter.getTokenizerCount());
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package simplerag.serve;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ImportWatcherTest {
+
+    private record Change(Set<String> changed,
+                          Set<String> deleted,
+                          boolean resync) {
+    }
+
+    @Test
+    void debounce(@TempDir Path dir) throws Exception {
+        Path snapshot = dir.resolve("2025-05-01/ZX1");
+        Files.createDirectories(snapshot);
+        DocResolver.DocRoot root = new DocResolver.DocRoot("conf", dir, Map.of("ZX1", "诛仙"), StandardCharsets.UTF_8);
+
+        BlockingQueue<Change> changes = new LinkedBlockingQueue<>();
+        try (ImportWatcher watcher = new ImportWatcher(List.of(root), 300, 5000)) {
+            Thread thread = Thread.ofVirtual().start(() -> {
+                try {
+                    watcher.run(new ImportWatcher.Listener() {
+                        @Override
+                        public void onDocsChanged(Map<String, Importer.DocPath> changed, Set<String> deleted) {
+                            changes.add(new Change(changed.keySet(), deleted, false));
+                        }
+
+                        @Override
+                        public void onResync() {
+                            changes.add(new Change(Set.of(), Set.of(), true));
+                        }
+                    });
+                } catch (InterruptedException e) {
+                    // 结束
+                }
+            });
+
+            // 连续的多次修改合并成一次，同一个文档只出现一次
+            for (int i = 0; i < 5; i++) {
+                Files.writeString(snapshot.resolve("a.md"), "a" + i);
+                Files.writeString(snapshot.resolve("b.md"), "b" + i);
+                Thread.sleep(20);
+            }
+            Files.createDirectories(snapshot.resolve("sub"));
+            write(snapshot.resolve("sub/c.md"), "c");
+            Files.writeString(snapshot.resolve("readme.txt"), "not md");
+
+            Change change = changes.poll(10, TimeUnit.SECONDS);
+            assertNotNull(change);
+            assertEquals(Set.of("conf/诛仙/a", "conf/诛仙/b", "conf/诛仙/sub/c"), change.changed());
+            assertEquals(Set.of(), change.deleted());
+            assertNull(changes.poll(600, TimeUnit.MILLISECONDS));
+
+            // 快照里都没有了是删除
+            Files.delete(snapshot.resolve("b.md"));
+            change = changes.poll(10, TimeUnit.SECONDS);
+            assertNotNull(change);
+            assertEquals(Set.of(), change.changed());
+            assertEquals(Set.of("conf/诛仙/b"), change.deleted());
+
+            // 新快照，里面的文档覆盖旧的
+            write(dir.resolve("2025-05-02/ZX1/a.md"), "new a");
+            change = changes.poll(10, TimeUnit.SECONDS);
+            assertNotNull(change);
+            assertEquals(Set.of("conf/诛仙/a"), change.changed());
+            assertEquals(Set.of(), change.deleted());
+
+            // 旧快照不再监听
+            Files.writeString(snapshot.resolve("a.md"), "old a");
+            write(snapshot.resolve("sub2/d.md"), "d");
+            assertNull(changes.poll(1, TimeUnit.SECONDS));
+
+            // 删掉最新快照要全量同步，同步前重新注册，旧快照又是最新的了
+            Files.delete(dir.resolve("2025-05-02/ZX1/a.md"));
+            Files.delete(dir.resolve("2025-05-02/ZX1"));
+            Files.delete(dir.resolve("2025-05-02"));
+            change = changes.poll(10, TimeUnit.SECONDS);
+            assertNotNull(change);
+            assertTrue(change.resync());
+            Files.writeString(snapshot.resolve("a.md"), "a again");
+            change = changes.poll(10, TimeUnit.SECONDS);
+            assertNotNull(change);
+            assertEquals(Set.of("conf/诛仙/a"), change.changed());
+
+            thread.interrupt();
+            thread.join();
+        }
+    }
+
+    @Test
+    void registerFailureBackoff(@TempDir Path dir) throws Exception {
+        // 根目录还不存在，注册一直失败
+        Path rootDir = dir.resolve("conf");
+        DocResolver.DocRoot root = new DocResolver.DocRoot("conf", rootDir, null, StandardCharsets.UTF_8);
+
+        BlockingQueue<Change> changes = new LinkedBlockingQueue<>();
+        try (ImportWatcher watcher = new ImportWatcher(List.of(root), 50, 5000)) {
+            Thread thread = Thread.ofVirtual().start(() -> {
+                try {
+                    watcher.run(new ImportWatcher.Listener() {
+                        @Override
+                        public void onDocsChanged(Map<String, Importer.DocPath> changed, Set<String> deleted) {
+                            changes.add(new Change(changed.keySet(), deleted, false));
+                        }
+
+                        @Override
+                        public void onResync() {
+                            changes.add(new Change(Set.of(), Set.of(), true));
+                        }
+                    });
+                } catch (InterruptedException e) {
+                    // 结束
+                }
+            });
+
+            // 不退避的话每50ms同步一次
+            Thread.sleep(1500);
+            int resyncs = changes.size();
+            assertTrue(resyncs >= 1 && resyncs <= 6, "resyncs: " + resyncs);
+
+            // 目录有了之后下次重试注册成功，之后正常监听
+            Path a = rootDir.resolve("2025-05-01/p/a.md");
+            write(a, "a");
+            Change change = null;
+            for (int i = 0; i < 50 && (change == null || change.resync()); i++) {
+                Files.writeString(a, "a" + i);
+                change = changes.poll(200, TimeUnit.MILLISECONDS);
+            }
+            assertNotNull(change);
+            assertFalse(change.resync());
+            assertEquals(Set.of("conf/p/a"), change.changed());
+
+            thread.interrupt();
+            thread.join();
+        }
+    }
+
+    private static void write(Path f, String content) throws IOException {
+        Files.createDirectories(f.getParent());
+        Files.writeString(f, content);
+    }
+}
@@ -0,0 +1,61 @@
+package simplerag.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CachedEmbedderTest {
+
+    @Test
+    void cacheVectors() {
+        AtomicInteger calls = new AtomicInteger();
+        // 确定性的本地向量：字符数和第一个字符
+        QueryEmbedder stub = text -> {
+            calls.incrementAndGet();
+            return new float[]{text.length(), text.charAt(0)};
+        };
+        CachedEmbedder embedder = new CachedEmbedder(stub, 2);
+
+        assertArrayEquals(new float[]{2, '坐'}, embedder.embed("坐骑"));
+        assertArrayEquals(new float[]{2, '坐'}, embedder.embed("坐骑"));
+        assertEquals(1, calls.get());
+
+        embedder.embed("宠物");
+        embedder.embed("翅膀"); // 淘汰坐骑
+        embedder.embed("坐骑");
+        assertEquals(4, calls.get());
+        assertEquals(1, embedder.stats().hits());
+    }
+
+    @Test
+    void embedAllOnlyMisses() {
+        List<List<String>> batches = new ArrayList<>();
+        QueryEmbedder stub = new QueryEmbedder() {
+            @Override
+            public float[] embed(String text) {
+                return new float[]{text.length(), text.charAt(0)};
+            }
+
+            @Override
+            public List<float[]> embedAll(List<String> texts) {
+                batches.add(texts);
+                return QueryEmbedder.super.embedAll(texts);
+            }
+        };
+        CachedEmbedder embedder = new CachedEmbedder(stub, 10);
+        embedder.embed("坐骑");
+
+        List<float[]> vectors = embedder.embedAll(List.of("宠物", "坐骑", "翅膀"));
+        assertEquals(List.of(List.of("宠物", "翅膀")), batches);
+        assertArrayEquals(new float[]{2, '宠'}, vectors.get(0));
+        assertArrayEquals(new float[]{2, '坐'}, vectors.get(1));
+        assertArrayEquals(new float[]{2, '翅'}, vectors.get(2));
+
+        embedder.embedAll(List.of("翅膀", "宠物"));
+        assertEquals(1, batches.size());
+    }
+}
@@ -0,0 +1,160 @@
+package simplerag.service;
+
+import io.weaviate.client.WeaviateClient;
+import org.junit.jupiter.api.Test;
+import simplerag.data.Doc;
+import simplerag.data.Splitter;
+
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChunkBatchWriterTest {
+
+    private static Doc doc(String id) {
+        return new Doc(id, id, "", "p", "", List.of("xxx"), LocalDateTime.now(), LocalDateTime.now());
+    }
+
+    private static List<Splitter.SplitterChunk> chunks(String docId, int n) {
+        List<Splitter.SplitterChunk> chunks = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            chunks.add(new Splitter.SplitterChunk(docId + " chunk " + i, 3));
+        }
+        return chunks;
+    }
+
+    @Test
+    void retryFailedSubsetAsBatch() throws Exception {
+        try (FakeWeaviate fake = new FakeWeaviate("Chunk")) {
+            String flaky1 = Chunk.genChunkUuid("a", "a chunk 1");
+            String flaky2 = Chunk.genChunkUuid("a", "a chunk 2");
+            String broken = Chunk.genChunkUuid("b", "b chunk 0");
+            Set<String> seen = ConcurrentHashMap.newKeySet();
+            CountDownLatch release = new CountDownLatch(1);
+            fake.setBatchHandler(ids -> {
+                release.await();
+                Set<String> failed = new HashSet<>();
+                // flaky只失败一次，broken一直失败
+                for (String id : List.of(flaky1, flaky2)) {
+                    if (ids.contains(id) && seen.add(id)) {
+                        failed.add(id);
+                    }
+                }
+                if (ids.contains(broken)) {
+                    failed.add(broken);
+                }
+                return failed;
+            });
+
+            Map<String, Boolean> done = new ConcurrentHashMap<>();
+            AtomicInteger writes = new AtomicInteger();
+            ChunkBatchWriter.WriterConf conf = new ChunkBatchWriter.WriterConf(1, 16, 16, 1024 * 1024, 5000, 1, 100, 2);
+            ChunkBatchWriter writer = new ChunkBatchWriter(new WeaviateClient(fake.config()), "Chunk", conf,
+                    writes::incrementAndGet);
+            // 第一个batch卡住flusher，后面的都在队列里，凑成一个batch
+            writer.submit(doc("z"), chunks("z", 1), (d, ok) -> done.put(d.id(), ok));
+            waitUntil(() -> fake.getBatches().size() == 1);
+            writer.submit(doc("a"), chunks("a", 4), (d, ok) -> done.put(d.id(), ok));
+            writer.submit(doc("b"), chunks("b", 2), (d, ok) -> done.put(d.id(), ok));
+            writer.submit(doc("empty"), List.of(), (d, ok) -> done.put(d.id(), ok));
+            release.countDown();
+            writer.close();
+            // 可以多次close
+            writer.close();
+
+            assertEquals(Map.of("z", true, "a", true, "b", false, "empty", true), done);
+            List<List<String>> batches = fake.getBatches();
+            assertEquals(4, batches.size());
+            assertEquals(6, batches.get(1).size());
+            // 失败的一起重试，每次只重发还没成功的
+            assertEquals(Set.of(flaky1, flaky2, broken), Set.copyOf(batches.get(2)));
+            assertEquals(List.of(broken), batches.get(3));
+            assertEquals(2, writer.getRetries());
+            assertEquals(6, fake.getObjects().size());
+            assertEquals(4, writes.get());
+        }
+    }
+
+    @Test
+    void adaptBatchSize() throws Exception {
+        try (FakeWeaviate fake = new FakeWeaviate("Chunk")) {
+            ChunkBatchWriter.WriterConf conf = new ChunkBatchWriter.WriterConf(1, 8, 16, 1024 * 1024, 5000, 1, 100, 0);
+            ChunkBatchWriter writer = new ChunkBatchWriter(new WeaviateClient(fake.config()), "Chunk", conf, () -> {
+            });
+
+            // 整个请求失败，每次减半
+            fake.setBatchHandler(ids -> null);
+            List<Boolean> results = Collections.synchronizedList(new ArrayList<>());
+            writer.submit(doc("a"), chunks("a", 8), (d, ok) -> results.add(ok));
+            waitUntil(() -> results.size() == 1);
+            assertEquals(List.of(false), results);
+            int failedRequests = fake.getBatches().size();
+            int decreased = Math.max(1, 8 >> failedRequests);
+            assertEquals(decreased, writer.getBatchSize());
+
+            // 成功且凑满了就加
+            CountDownLatch release = new CountDownLatch(1);
+            fake.setBatchHandler(ids -> {
+                release.await();
+                return Set.of();
+            });
+            writer.submit(doc("b"), chunks("b", 1), (d, ok) -> results.add(ok));
+            waitUntil(() -> fake.getBatches().size() == failedRequests + 1);
+            writer.submit(doc("c"), chunks("c", 60), (d, ok) -> results.add(ok));
+            release.countDown();
+            writer.close();
+
+            assertEquals(List.of(false, true, true), results);
+            assertTrue(writer.getBatchSize() > decreased, "batch size: " + writer.getBatchSize());
+            for (List<String> batch : fake.getBatches()) {
+                assertTrue(batch.size() <= 16);
+            }
+        }
+    }
+
+    @Test
+    void submitInSlices() throws Exception {
+        try (FakeWeaviate fake = new FakeWeaviate("Chunk")) {
+            ChunkBatchWriter.WriterConf conf = new ChunkBatchWriter.WriterConf(1, 4, 8, 1024 * 1024, 5000, 2, 4, 0);
+            ChunkBatchWriter writer = new ChunkBatchWriter(new WeaviateClient(fake.config()), "Chunk", conf, () -> {
+            });
+            Map<String, Boolean> done = new ConcurrentHashMap<>();
+
+            ChunkBatchWriter.DocStream stream = writer.open(doc("a"), (d, ok) -> done.put(d.id(), ok));
+            for (int i = 0; i < 5; i++) {
+                List<Splitter.SplitterChunk> slice = new ArrayList<>();
+                for (int j = 0; j < 3; j++) {
+                    slice.add(new Splitter.SplitterChunk("a chunk " + i + "-" + j, 3));
+                }
+                stream.submit(slice);
+            }
+            // 提交的都写完了，但还没finish，不回调
+            waitUntil(() -> fake.getObjects().size() == 15);
+            Thread.sleep(100);
+            assertFalse(done.containsKey("a"));
+            stream.finish();
+            waitUntil(() -> done.containsKey("a"));
+            assertTrue(done.get("a"));
+
+            // 中途出错的，已经提交的写完后回调失败
+            ChunkBatchWriter.DocStream aborted = writer.open(doc("b"), (d, ok) -> done.put(d.id(), ok));
+            aborted.submit(chunks("b", 3));
+            aborted.abort();
+            writer.close();
+            assertFalse(done.get("b"));
+            assertEquals(18, fake.getObjects().size());
+        }
+    }
+
+    private static void waitUntil(BooleanSupplier condition) throws InterruptedException {
+        for (int i = 0; i < 500 && !condition.getAsBoolean(); i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+}
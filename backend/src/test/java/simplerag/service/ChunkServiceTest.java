@@ -0,0 +1,135 @@
+package simplerag.service;
+
+import org.junit.jupiter.api.Test;
+import simplerag.data.Doc;
+import simplerag.data.Splitter;
+import simplerag.utils.MicroBatcher;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChunkServiceTest {
+
+    private static Doc doc(String id) {
+        return new Doc(id, id, "", "p", "", List.of("xxx"), LocalDateTime.now(), LocalDateTime.now());
+    }
+
+    private static List<String> bodies(List<ChunkService.RetrieveChunk> chunks) {
+        return chunks.stream().map(ChunkService.RetrieveChunk::body).sorted().toList();
+    }
+
+    @Test
+    void searchDuringWriteNotCached() throws Exception {
+        try (FakeWeaviate fake = new FakeWeaviate("Chunk")) {
+            ChunkService chunkService = new ChunkService(fake.config(), "Chunk", Map.of(),
+                    RetrieveCache.CacheConf.defaultConf());
+            assertTrue(chunkService.importChunk(List.of(new Splitter.SplitterChunk("a", 1)), doc("a")));
+            assertEquals(List.of("a"), bodies(chunkService.retrieve("q", null)));
+
+            // 写入请求已经发出但还没生效时查询
+            CountDownLatch sending = new CountDownLatch(1);
+            CountDownLatch release = new CountDownLatch(1);
+            fake.setBatchHandler(ids -> {
+                sending.countDown();
+                release.await();
+                return Set.of();
+            });
+            AtomicBoolean written = new AtomicBoolean();
+            ChunkBatchWriter writer = chunkService.newBatchWriter(ChunkBatchWriter.WriterConf.defaultConf());
+            writer.submit(doc("b"), List.of(new Splitter.SplitterChunk("b", 1)), (d, ok) -> written.set(ok));
+            sending.await();
+            assertEquals(List.of("a"), bodies(chunkService.retrieve("q", null)));
+            assertEquals(List.of("a"), bodies(chunkService.retrieve("q2", null)));
+            release.countDown();
+            writer.close();
+            assertTrue(written.get());
+
+            // 写入之后不能再用写入期间缓存的结果
+            assertEquals(List.of("a", "b"), bodies(chunkService.retrieve("q", null)));
+            assertEquals(List.of("a", "b"), bodies(chunkService.retrieve("q2", null)));
+
+            assertTrue(chunkService.deleteChunks(List.of(Chunk.genChunkUuid("a", "a"))));
+            assertEquals(List.of("b"), bodies(chunkService.retrieve("q", null)));
+        }
+    }
+
+    @Test
+    void findChunkIds() throws Exception {
+        try (FakeWeaviate fake = new FakeWeaviate("Chunk")) {
+            ChunkService chunkService = new ChunkService(fake.config(), "Chunk", Map.of(),
+                    RetrieveCache.CacheConf.defaultConf());
+            // 超过一页
+            List<Splitter.SplitterChunk> chunks = new ArrayList<>();
+            for (int i = 0; i < 2100; i++) {
+                chunks.add(new Splitter.SplitterChunk("a" + i, 1));
+            }
+            assertTrue(chunkService.importChunk(chunks, doc("a")));
+            assertTrue(chunkService.importChunk(List.of(new Splitter.SplitterChunk("b", 1)), doc("a b")));
+
+            List<String> ids = chunkService.findChunkIds("a");
+            assertEquals(Set.copyOf(Chunk.genChunkUuids("a", chunks)), Set.copyOf(ids));
+            assertEquals(2100, ids.size());
+
+            fake.setGraphqlError("fake graphql failure");
+            assertThrows(IOException.class, () -> chunkService.findChunkIds("a"));
+        }
+    }
+
+    @Test
+    void queryWithConfigHeadersAndToken() throws Exception {
+        try (FakeWeaviate fake = new FakeWeaviate("Chunk")) {
+            ChunkService chunkService = new ChunkService(fake.config(Map.of("X-Test-Header", "v")), "Chunk", Map.of(),
+                    null, null, null, () -> "secret");
+            assertTrue(chunkService.importChunk(List.of(new Splitter.SplitterChunk("a", 1)), doc("a")));
+            assertEquals(List.of("a"), bodies(chunkService.retrieve("q", null)));
+            assertEquals("v", fake.getLastGraphqlHeaders().getFirst("X-Test-Header"));
+            assertEquals("Bearer secret", fake.getLastGraphqlHeaders().getFirst("Authorization"));
+        }
+    }
+
+    @Test
+    void aliasGet() {
+        assertEquals("q0:Chunk(limit:2){body _additional{id score}}",
+                ChunkService.aliasGet("{Get{Chunk(limit:2){body _additional{id score}}}}", "Chunk", "q0"));
+        assertEquals("q1:Chunk{body}", ChunkService.aliasGet("{Get{Chunk{body}}}", "Chunk", "q1"));
+        // 格式不对的不切
+        assertNull(ChunkService.aliasGet("{Get{ChunkX(limit:2){body}}}", "Chunk", "q0"));
+        assertNull(ChunkService.aliasGet("{Aggregate{Chunk{meta{count}}}}", "Chunk", "q0"));
+        assertNull(ChunkService.aliasGet("{Get{Chunk(limit:2){body}}", "Chunk", "q0"));
+        assertNull(ChunkService.aliasGet("{Get{Chunk", "Chunk", "q0"));
+    }
+
+    @Test
+    void batchedSearch() throws Exception {
+        try (FakeWeaviate fake = new FakeWeaviate("Chunk")) {
+            ChunkService chunkService = new ChunkService(fake.config(), "Chunk", Map.of(), null, null,
+                    new MicroBatcher.BatchConf(16, 50));
+            assertTrue(chunkService.importChunk(List.of(new Splitter.SplitterChunk("a", 1)), doc("a")));
+
+            List<Future<List<ChunkService.RetrieveChunk>>> futures = new ArrayList<>();
+            try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+                for (int i = 0; i < 8; i++) {
+                    String query = "q" + i;
+                    futures.add(executor.submit(() -> chunkService.retrieve(query, null)));
+                }
+            }
+            for (Future<List<ChunkService.RetrieveChunk>> f : futures) {
+                assertEquals(List.of("a"), bodies(f.get()));
+            }
+            assertEquals(8, chunkService.getSearchBatchStats().items());
+            // 至少有一次用别名合成了一个请求
+            assertTrue(chunkService.getSearchBatchStats().maxBatch() > 1);
+        }
+    }
+}
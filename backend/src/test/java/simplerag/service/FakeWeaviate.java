@@ -0,0 +1,222 @@
+package simplerag.service;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.weaviate.client.Config;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 测试用的假weaviate，object存在内存里，只实现用到的接口：
+ * schema是否存在、batch写入、按id批量删除、graphql Get（不做检索，返回所有object）。
+ */
+public class FakeWeaviate implements AutoCloseable {
+
+    /**
+     * 收到batch写入时调用，这时还没有写入，可以在这里阻塞
+     */
+    public interface BatchHandler {
+        /**
+         * @return 写入失败的id，返回null表示整个请求失败（500）
+         */
+        Set<String> failedIds(List<String> ids) throws InterruptedException;
+    }
+
+    private final HttpServer server;
+    private final String className;
+    private final Map<String, JsonObject> objects = new ConcurrentHashMap<>();
+    private final List<List<String>> batches = new CopyOnWriteArrayList<>();
+    private volatile BatchHandler batchHandler = ids -> Set.of();
+    private volatile Headers lastGraphqlHeaders;
+    private volatile String graphqlError;
+
+    public FakeWeaviate(String className) throws IOException {
+        this.className = className;
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    public Config config() {
+        return new Config("http", "127.0.0.1:" + server.getAddress().getPort());
+    }
+
+    public Config config(Map<String, String> headers) {
+        return new Config("http", "127.0.0.1:" + server.getAddress().getPort(), headers);
+    }
+
+    public void setBatchHandler(BatchHandler batchHandler) {
+        this.batchHandler = batchHandler;
+    }
+
+    /**
+     * 每个batch写入请求里的id，包括失败的
+     */
+    public List<List<String>> getBatches() {
+        return batches;
+    }
+
+    public Map<String, JsonObject> getObjects() {
+        return objects;
+    }
+
+    public Headers getLastGraphqlHeaders() {
+        return lastGraphqlHeaders;
+    }
+
+    /**
+     * 不为null时graphql都返回这个错误
+     */
+    public void setGraphqlError(String graphqlError) {
+        this.graphqlError = graphqlError;
+    }
+
+    private void handle(HttpExchange ex) throws IOException {
+        try (ex) {
+            String path = ex.getRequestURI().getPath();
+            String method = ex.getRequestMethod();
+            String body = new String(ex.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            if (method.equals("GET") && path.startsWith("/v1/schema/")) {
+                send(ex, 200, "{\"class\":\"" + className + "\",\"properties\":[]}");
+            } else if (method.equals("POST") && path.equals("/v1/batch/objects")) {
+                batchWrite(ex, body);
+            } else if (method.equals("DELETE") && path.equals("/v1/batch/objects")) {
+                batchDelete(ex, body);
+            } else if (method.equals("POST") && path.equals("/v1/graphql")) {
+                lastGraphqlHeaders = ex.getRequestHeaders();
+                graphql(ex, body);
+            } else {
+                send(ex, 404, "{\"error\":[{\"message\":\"not found\"}]}");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void batchWrite(HttpExchange ex, String body) throws IOException, InterruptedException {
+        JsonArray in = JsonParser.parseString(body).getAsJsonObject().getAsJsonArray("objects");
+        List<String> ids = new ArrayList<>();
+        for (JsonElement e : in) {
+            ids.add(e.getAsJsonObject().get("id").getAsString());
+        }
+        batches.add(ids);
+        Set<String> failed = batchHandler.failedIds(ids);
+        if (failed == null) {
+            send(ex, 500, "{\"error\":[{\"message\":\"fake batch failure\"}]}");
+            return;
+        }
+
+        JsonArray out = new JsonArray();
+        for (JsonElement e : in) {
+            JsonObject o = e.getAsJsonObject();
+            String id = o.get("id").getAsString();
+            JsonObject result = new JsonObject();
+            if (failed.contains(id)) {
+                result.add("errors", JsonParser.parseString("{\"error\":[{\"message\":\"fake object failure\"}]}"));
+            } else {
+                objects.put(id, o.getAsJsonObject("properties"));
+                result.addProperty("status", "SUCCESS");
+            }
+            o.add("result", result);
+            out.add(o);
+        }
+        send(ex, 200, out.toString());
+    }
+
+    private void batchDelete(HttpExchange ex, String body) throws IOException {
+        JsonObject where = JsonParser.parseString(body).getAsJsonObject()
+                .getAsJsonObject("match").getAsJsonObject("where");
+        int matches = 0;
+        for (JsonElement id : where.getAsJsonArray("valueTextArray")) {
+            if (objects.remove(id.getAsString()) != null) {
+                matches++;
+            }
+        }
+        send(ex, 200, "{\"results\":{\"matches\":" + matches + ",\"successful\":" + matches + ",\"failed\":0}}");
+    }
+
+    private static final Pattern ALIAS = Pattern.compile("(\\w+)\\s*:\\s*(\\w+)\\s*\\(");
+    private static final Pattern LIMIT = Pattern.compile("limit\\s*:\\s*(\\d+)");
+    private static final Pattern OFFSET = Pattern.compile("offset\\s*:\\s*(\\d+)");
+
+    /**
+     * 有别名时每个别名都返回所有object，没有别名时按limit和offset分页
+     */
+    private void graphql(HttpExchange ex, String body) throws IOException {
+        String query = JsonParser.parseString(body).getAsJsonObject().get("query").getAsString();
+        if (graphqlError != null) {
+            send(ex, 200, "{\"data\":{\"Get\":{\"" + className + "\":null}},\"errors\":[{\"message\":\""
+                    + graphqlError + "\"}]}");
+            return;
+        }
+        List<String> names = new ArrayList<>();
+        Matcher m = ALIAS.matcher(query);
+        while (m.find()) {
+            if (m.group(2).equals(className)) {
+                names.add(m.group(1));
+            }
+        }
+        int offset = 0;
+        int limit = Integer.MAX_VALUE;
+        if (names.isEmpty()) {
+            names.add(className);
+            Matcher lm = LIMIT.matcher(query);
+            if (lm.find()) {
+                limit = Integer.parseInt(lm.group(1));
+            }
+            Matcher om = OFFSET.matcher(query);
+            if (om.find()) {
+                offset = Integer.parseInt(om.group(1));
+            }
+        }
+
+        JsonObject get = new JsonObject();
+        for (String name : names) {
+            JsonArray hits = new JsonArray();
+            for (Map.Entry<String, JsonObject> e : new TreeMap<>(objects).entrySet().stream()
+                    .skip(offset).limit(limit).toList()) {
+                JsonObject hit = e.getValue().deepCopy();
+                JsonObject additional = new JsonObject();
+                additional.addProperty("id", e.getKey());
+                additional.addProperty("score", "0.5");
+                hit.add("_additional", additional);
+                hits.add(hit);
+            }
+            get.add(name, hits);
+        }
+        JsonObject data = new JsonObject();
+        data.add("Get", get);
+        JsonObject res = new JsonObject();
+        res.add("data", data);
+        send(ex, 200, res.toString());
+    }
+
+    private static void send(HttpExchange ex, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        ex.getResponseHeaders().set("Content-Type", "application/json");
+        ex.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = ex.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
@@ -0,0 +1,50 @@
+package simplerag.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RetrieveCacheTest {
+
+    private static List<ChunkService.RetrieveChunk> chunks(String body) {
+        return List.of(new ChunkService.RetrieveChunk("id", 0.5f, body, "doc", "p", "t", "u"));
+    }
+
+    @Test
+    void invalidateByGeneration() {
+        RetrieveCache cache = new RetrieveCache(RetrieveCache.CacheConf.defaultConf());
+        RetrieveCache.Key key = new RetrieveCache.Key(RetrieveCache.normalize(" 坐骑\n  系统 "), "诛仙", 0.75f, ChunkService.RetrieveOptions.defaultOptions());
+        assertEquals("坐骑 系统", key.query());
+
+        AtomicInteger searches = new AtomicInteger();
+        assertEquals("a0", cache.get(key, () -> chunks("a" + searches.getAndIncrement())).getFirst().body());
+        assertEquals("a0", cache.get(key, () -> chunks("a" + searches.getAndIncrement())).getFirst().body());
+        assertEquals(1, searches.get());
+
+        cache.invalidate();
+        assertEquals("a1", cache.get(key, () -> chunks("a" + searches.getAndIncrement())).getFirst().body());
+        assertEquals(2, searches.get());
+
+        // 出错不缓存
+        RetrieveCache.Key other = new RetrieveCache.Key("x", null, 0.75f, ChunkService.RetrieveOptions.defaultOptions());
+        assertNull(cache.get(other, () -> null));
+        assertEquals("x", cache.get(other, () -> chunks("x")).getFirst().body());
+
+        RetrieveCache.Stats stats = cache.stats();
+        assertEquals(1, stats.generation());
+        assertEquals(1, stats.stale());
+        assertEquals(1.0 / 5, stats.hitRate(), 1e-9);
+    }
+
+    @Test
+    void ttl() throws InterruptedException {
+        RetrieveCache cache = new RetrieveCache(new RetrieveCache.CacheConf(1024 * 1024, 1));
+        RetrieveCache.Key key = new RetrieveCache.Key("q", null, 0.75f, ChunkService.RetrieveOptions.defaultOptions());
+        cache.get(key, () -> chunks("1"));
+        Thread.sleep(5);
+        assertEquals("2", cache.get(key, () -> chunks("2")).getFirst().body());
+    }
+}
@@ -0,0 +1,56 @@
+package simplerag.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SearchResponseDecoderTest {
+
+    @Test
+    void decode() throws IOException {
+        String json = """
+                {"data":{"Get":{"Chunk4B":[
+                  {"body":"坐骑\\n系统","docId":"d1","docProject":"诛仙","docTitle":"t1","docUrl":"u1",
+                   "_additional":{"id":"id1","distance":null,"score":"0.9"}},
+                  {"body":"b2","docId":"d2","docProject":null,"docTitle":"t2","docUrl":"u2","extra":[1,{"a":2}],
+                   "_additional":{"id":"id2","score":"0.4"}},
+                  {"docId":"d3","_additional":{"id":"id3"}}
+                ]}}}""";
+        List<ChunkService.RetrieveChunk> chunks = SearchResponseDecoder.decode(new StringReader(json), "Chunk4B", 0);
+        assertEquals(List.of(
+                new ChunkService.RetrieveChunk("id1", 0.9f, "坐骑\n系统", "d1", "诛仙", "t1", "u1"),
+                new ChunkService.RetrieveChunk("id2", 0.4f, "b2", "d2", null, "t2", "u2"),
+                new ChunkService.RetrieveChunk("id3", null, null, "d3", null, null, null)), chunks);
+
+        // 低于阈值的丢掉，没有score的保留
+        chunks = SearchResponseDecoder.decode(new StringReader(json), "Chunk4B", 0.5f);
+        assertEquals(List.of("id1", "id3"), chunks.stream().map(ChunkService.RetrieveChunk::id).toList());
+
+        assertEquals(List.of(), SearchResponseDecoder.decode(new StringReader("{\"data\":{\"Get\":{\"Other\":[]}}}"), "Chunk4B", 0));
+    }
+
+    @Test
+    void decodeAll() throws IOException {
+        String json = """
+                {"data":{"Get":{
+                  "q1":[{"body":"b2","_additional":{"id":"id2","score":"0.3"}}],
+                  "q0":[{"body":"b1","_additional":{"id":"id1","score":"0.9"}},{"body":"b0","_additional":{"id":"id0","score":"0.1"}}]
+                }}}""";
+        List<List<ChunkService.RetrieveChunk>> result = SearchResponseDecoder.decodeAll(new StringReader(json),
+                List.of("q0", "q1", "q2"), new float[]{0.5f, 0, 0});
+        assertEquals(List.of(List.of("id1"), List.of("id2"), List.of()),
+                result.stream().map(l -> l.stream().map(ChunkService.RetrieveChunk::id).toList()).toList());
+    }
+
+    @Test
+    void errors() {
+        String json = """
+                {"data":{"Get":{"Chunk4B":null}},"errors":[{"locations":[{"column":6,"line":1}],"message":"no such class"}]}""";
+        IOException e = assertThrows(IOException.class, () -> SearchResponseDecoder.decode(new StringReader(json), "Chunk4B", 0));
+        assertEquals("no such class", e.getMessage());
+    }
+}
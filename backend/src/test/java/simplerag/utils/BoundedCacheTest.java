@@ -0,0 +1,39 @@
+package simplerag.utils;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BoundedCacheTest {
+
+    @Test
+    void evictByWeight() {
+        BoundedCache<String, String> cache = new BoundedCache<>(10, (k, v) -> v.length());
+        cache.put("a", "1234");
+        cache.put("b", "1234");
+        assertEquals("1234", cache.get("a")); // a变成最近使用的
+        cache.put("c", "1234");
+
+        assertNull(cache.get("b"));
+        assertEquals("1234", cache.get("a"));
+        assertEquals("1234", cache.get("c"));
+
+        BoundedCache.Stats stats = cache.stats();
+        assertEquals(2, stats.size());
+        assertEquals(8, stats.weight());
+        assertEquals(1, stats.evictions());
+        assertEquals(3, stats.hits());
+        assertEquals(1, stats.misses());
+    }
+
+    @Test
+    void replace() {
+        BoundedCache<Integer, Integer> cache = new BoundedCache<>(1000, null);
+        for (int i = 0; i < 2000; i++) {
+            cache.put(i % 100, i);
+        }
+        assertEquals(100, cache.stats().size());
+        assertEquals(1999, cache.get(99));
+        assertEquals(0, cache.stats().evictions());
+    }
+}
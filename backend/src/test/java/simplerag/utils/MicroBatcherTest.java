@@ -0,0 +1,104 @@
+package simplerag.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MicroBatcherTest {
+
+    @Test
+    void batchUnderLoad() throws Exception {
+        List<Integer> sizes = new CopyOnWriteArrayList<>();
+        CountDownLatch release = new CountDownLatch(1);
+        MicroBatcher.BatchConf conf = new MicroBatcher.BatchConf(4, 50);
+        try (MicroBatcher<Integer, String> batcher = new MicroBatcher<>("test", conf, items -> {
+            sizes.add(items.size());
+            if (sizes.size() == 1) {
+                // 第一批卡住，后面的请求堆积起来
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return items.stream().map(i -> "r" + i).toList();
+        });
+             ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+
+            // 负载低时马上处理，不等maxDelay
+            Future<String> first = executor.submit(() -> batcher.execute(0));
+            while (sizes.isEmpty()) {
+                Thread.onSpinWait();
+            }
+            assertEquals(List.of(1), sizes);
+
+            List<Future<String>> rest = new ArrayList<>();
+            for (int i = 1; i <= 8; i++) {
+                int item = i;
+                rest.add(executor.submit(() -> batcher.execute(item)));
+            }
+            release.countDown();
+
+            assertEquals("r0", first.get());
+            for (int i = 1; i <= 8; i++) {
+                assertEquals("r" + i, rest.get(i - 1).get());
+            }
+            assertTrue(sizes.stream().allMatch(s -> s <= 4));
+            MicroBatcher.Stats stats = batcher.stats();
+            assertEquals(9, stats.items());
+            assertTrue(stats.batches() < 9, "batches: " + sizes);
+        }
+    }
+
+    @Test
+    void propagateError() {
+        try (MicroBatcher<Integer, String> batcher = new MicroBatcher<>("test", MicroBatcher.BatchConf.defaultConf(),
+                items -> {
+                    throw new IllegalStateException("weaviate down");
+                })) {
+            assertEquals("weaviate down", assertThrows(IllegalStateException.class, () -> batcher.execute(1)).getMessage());
+        }
+
+        // 结果个数不对
+        try (MicroBatcher<Integer, String> batcher = new MicroBatcher<>("test", MicroBatcher.BatchConf.defaultConf(),
+                items -> List.of())) {
+            assertThrows(IllegalStateException.class, () -> batcher.execute(1));
+        }
+    }
+
+    @Test
+    void closeWhileExecuting() throws Exception {
+        for (int round = 0; round < 20; round++) {
+            MicroBatcher<Integer, Integer> batcher = new MicroBatcher<>("test", new MicroBatcher.BatchConf(4, 1),
+                    items -> items);
+            List<Future<?>> futures = new ArrayList<>();
+            try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+                for (int t = 0; t < 8; t++) {
+                    futures.add(executor.submit(() -> {
+                        for (int i = 0; ; i++) {
+                            try {
+                                assertEquals(i, batcher.execute(i));
+                            } catch (CancellationException e) {
+                                return;
+                            }
+                        }
+                    }));
+                }
+                Thread.sleep(5);
+                batcher.close();
+                // 和close并发的请求也要结束，不能一直等
+                try {
+                    for (Future<?> f : futures) {
+                        f.get(5, TimeUnit.SECONDS);
+                    }
+                } finally {
+                    executor.shutdownNow();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package simplerag.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SingleFlightTest {
+
+    @Test
+    void collapseConcurrentCalls() throws Exception {
+        SingleFlight<String, String> flight = new SingleFlight<>();
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger runs = new AtomicInteger();
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            Future<String> leader = executor.submit(() -> flight.execute("q", () -> {
+                entered.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return "r" + runs.incrementAndGet();
+            }));
+            entered.await();
+
+            List<Future<String>> followers = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                followers.add(executor.submit(() -> flight.execute("q", () -> "r" + runs.incrementAndGet())));
+            }
+            while (flight.stats().collapsed() < 4) {
+                Thread.onSpinWait();
+            }
+            // 不同的key不受影响
+            assertEquals("other", flight.execute("other", () -> "other"));
+
+            release.countDown();
+            assertEquals("r1", leader.get());
+            for (Future<String> f : followers) {
+                assertEquals("r1", f.get());
+            }
+        }
+        assertEquals(1, runs.get());
+
+        // 执行完就移除，下次重新执行
+        assertEquals("r2", flight.execute("q", () -> "r" + runs.incrementAndGet()));
+        SingleFlight.Stats stats = flight.stats();
+        assertEquals(3, stats.executions());
+        assertEquals(4, stats.collapsed());
+        assertEquals(0, stats.inFlight());
+    }
+
+    @Test
+    void propagateErrorAndCancel() throws Exception {
+        SingleFlight<String, String> flight = new SingleFlight<>();
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            Future<String> leader = executor.submit(() -> flight.execute("q", () -> {
+                entered.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                throw new IllegalStateException("weaviate down");
+            }));
+            entered.await();
+
+            Future<String> follower = executor.submit(() -> flight.execute("q", () -> "unused"));
+            Future<Boolean> cancelled = executor.submit(() -> {
+                Thread.currentThread().interrupt();
+                try {
+                    flight.execute("q", () -> "unused");
+                    return false;
+                } catch (CancellationException e) {
+                    return Thread.currentThread().isInterrupted();
+                }
+            });
+            // 中断的follower自己退出，不影响leader和其他follower
+            assertTrue(cancelled.get());
+            while (flight.stats().collapsed() < 2) {
+                Thread.onSpinWait();
+            }
+
+            release.countDown();
+            ExecutionException e = assertThrows(ExecutionException.class, follower::get);
+            assertInstanceOf(IllegalStateException.class, e.getCause());
+            assertEquals("weaviate down", e.getCause().getMessage());
+            assertInstanceOf(IllegalStateException.class, assertThrows(ExecutionException.class, leader::get).getCause());
+        }
+
+        assertEquals(1, flight.stats().failures());
+        // 失败不留在表里
+        assertEquals("ok", flight.execute("q", () -> "ok"));
+    }
+}
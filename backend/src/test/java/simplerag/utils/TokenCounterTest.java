@@ -1,8 +1,14 @@
 package simplerag.utils;
 
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
-import static org.junit.jupiter.api.Assertions.assertEquals;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
 
 class TokenCounterTest {
 
@@ -17,6 +23,33 @@ class TokenCounterTest {
                 int tokenCount = tk.countTokens(  "Hello world, this is a test for DeepSeek tokenizer.");
                 assertEquals(14, tokenCount);
             }
+            {
+                int[] tokenCounts = tk.countTokens(List.of("你好，世界！", "Hello world, this is a test for DeepSeek tokenizer."));
+                assertArrayEquals(new int[]{4, 14}, tokenCounts);
+            }
+        }
+    }
+
+    /**
+     * 测试用的tokenizer每个字符一个token，再加一个<s>
+     */
+    @Test
+    void loadLocal(@TempDir Path cacheDir) {
+        System.setProperty("simplerag.tokenizer.cache", cacheDir.toString());
+        try (TokenCounter tk = new TokenCounter("test/char", Map.of(), true, TokenCounter.CacheConf.defaultConf())) {
+            assertTrue(Files.isRegularFile(TokenizerLoader.cacheFile("test/char")));
+
+            assertEquals(6, tk.countTokens("ab\n😀c"));
+            assertArrayEquals(new int[]{3, 1}, tk.countTokens(List.of("你好", "")));
+            assertArrayEquals(new int[]{3, 1}, tk.countTokens(List.of("你好", "")));
+            assertEquals(2, tk.getCacheStats().hits());
+
+            TokenCounter.Tokens[] tokens = tk.tokenize(List.of("a😀c", "b"), 2);
+            assertEquals(4, tokens[0].count());
+            assertArrayEquals(new int[]{1, 3, 4}, tokens[0].ends());
+            assertNull(tokens[1].ends());
+        } finally {
+            System.clearProperty("simplerag.tokenizer.cache");
         }
     }
-}
\ No newline at end of file
+}